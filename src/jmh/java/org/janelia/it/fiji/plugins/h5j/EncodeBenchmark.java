@@ -0,0 +1,85 @@
+/*
+ * Copyright 2015 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+
+package org.janelia.it.fiji.plugins.h5j;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * avcodec_send_frame / avcodec_receive_packet alone. Each invocation is
+ * handed a freshly copied and converted slice, so x265 never sees the same
+ * picture twice in a row.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class EncodeBenchmark {
+
+    @Param({"1024"})
+    public int width;
+
+    @Param({"1024"})
+    public int height;
+
+    @Param({"16"})
+    public int depth;
+
+    @Param({"8", "16"})
+    public int bitDepth;
+
+    Object[] slices;
+    FFMpegEncoder encoder;
+    long frameBytes;
+    int next;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        slices = SyntheticStack.slices(width, height, depth, bitDepth);
+        frameBytes = SyntheticStack.frameBytes(width, height, bitDepth);
+    }
+
+    @Setup(Level.Iteration)
+    public void openEncoder() {
+        encoder = PixelTransferBenchmark.newEncoder(width, height, bitDepth);
+    }
+
+    @TearDown(Level.Iteration)
+    public void closeEncoder() {
+        encoder.close();
+        encoder.free_buffer();
+    }
+
+    @Setup(Level.Invocation)
+    public void nextFrame() {
+        PixelTransferBenchmark.copy(encoder, slices[next], width, height, bitDepth);
+        encoder.convert_frame();
+        next = (next + 1) % slices.length;
+    }
+
+    @Benchmark
+    public void encode(StageCounters counters) {
+        encoder.encode_frame();
+        counters.add(frameBytes, 1);
+    }
+}
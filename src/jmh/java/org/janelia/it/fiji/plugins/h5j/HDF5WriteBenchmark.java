@@ -0,0 +1,107 @@
+/*
+ * Copyright 2015 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+
+package org.janelia.it.fiji.plugins.h5j;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import ch.systemsx.cisd.hdf5.HDF5Factory;
+import ch.systemsx.cisd.hdf5.IHDF5Writer;
+import ij.ImagePlus;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The HDF5 side of saveStackHDF5: streaming an already encoded channel into
+ * a chunked dataset, and the whole write of a synthetic stack end to end.
+ * Each invocation writes a fresh file, so the file does not grow over a
+ * measurement.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 1, time = 5)
+@Measurement(iterations = 3, time = 10)
+@Fork(1)
+public class HDF5WriteBenchmark {
+
+    @Param({"1024"})
+    public int width;
+
+    @Param({"1024"})
+    public int height;
+
+    @Param({"16"})
+    public int depth;
+
+    @Param({"8", "16"})
+    public int bitDepth;
+
+    @Param({"1048576"})
+    public int chunkSize;
+
+    @Param({"64"})
+    public int streamMegabytes;
+
+    File file;
+    byte[] block;
+    ImagePlus image;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        file = File.createTempFile("h5j-benchmark", ".h5j");
+        block = new byte[chunkSize];
+        new Random(42).nextBytes(block); // encoded streams do not compress
+        image = SyntheticStack.image(width, height, depth, bitDepth);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        file.delete();
+        new File(file.getPath() + ".out.h5j").delete();
+    }
+
+    /** One channel stream into a new file, including creating and closing it. */
+    @Benchmark
+    public void streamWrite(StageCounters counters) {
+        file.delete();
+        IHDF5Writer writer = HDF5Factory.configure(file).useSimpleDataSpaceForAttributes().writer();
+        try {
+            writer.object().createGroup("/Channels");
+            HDF5StreamOutput output = new HDF5StreamOutput(writer, "/Channels/Channel_0", chunkSize);
+            long total = (long) streamMegabytes << 20;
+            for (long offset = 0; offset < total; offset += chunkSize)
+                output.write(block, (int) Math.min(chunkSize, total - offset), offset);
+            counters.add(total, 0);
+        } finally {
+            writer.close();
+        }
+    }
+
+    @Benchmark
+    public void saveStackHDF5(StageCounters counters) {
+        H5j_Writer h5j = new H5j_Writer();
+        h5j.setChunkSize(chunkSize);
+        if (!h5j.saveStackHDF5(file.getPath() + ".out.h5j", image))
+            throw new IllegalStateException("saveStackHDF5 failed");
+        counters.add(SyntheticStack.frameBytes(width, height, bitDepth) * depth, depth);
+    }
+}
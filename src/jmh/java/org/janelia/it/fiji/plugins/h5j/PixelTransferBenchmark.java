@@ -0,0 +1,126 @@
+/*
+ * Copyright 2015 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+
+package org.janelia.it.fiji.plugins.h5j;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import static org.bytedeco.ffmpeg.global.avcodec.AV_CODEC_ID_H265;
+
+/**
+ * Copy of ImageJ slices into the encoder's frame, and the colorspace
+ * conversion still done by sws_scale for frames that are not filled
+ * directly: RGB input for 8-bit codecs, raw GRAY16 for GRAY12 ones.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PixelTransferBenchmark {
+
+    @Param({"1024"})
+    public int width;
+
+    @Param({"1024"})
+    public int height;
+
+    @Param({"16"})
+    public int depth;
+
+    @Param({"8", "16"})
+    public int bitDepth;
+
+    Object[] slices;
+    FFMpegEncoder encoder;
+    /** Holds a frame in its raw input format, for colorspaceConversion. */
+    FFMpegEncoder converting;
+    long frameBytes;
+    int next;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        slices = SyntheticStack.slices(width, height, depth, bitDepth);
+        encoder = newEncoder(width, height, bitDepth);
+        frameBytes = SyntheticStack.frameBytes(width, height, bitDepth);
+        // The gray paths pixelCopy takes fill the codec frame and leave
+        // nothing to convert; these fills go through the raw frame instead
+        converting = newEncoder(width, height, bitDepth);
+        if (bitDepth == 8) {
+            byte[] gray = (byte[]) slices[0];
+            converting.setPlane(gray, gray, gray, width, height, width);
+        } else {
+            converting.setPlane((short[]) slices[0], 0, width, height, width, (short[]) null);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        encoder.close();
+        encoder.free_buffer();
+        converting.close();
+        converting.free_buffer();
+    }
+
+    @Benchmark
+    public void pixelCopy(StageCounters counters) {
+        copy(encoder, slices[next], width, height, bitDepth);
+        next = (next + 1) % slices.length;
+        counters.add(frameBytes, 1);
+    }
+
+    @Benchmark
+    public void colorspaceConversion(StageCounters counters) {
+        converting.convert_frame();
+        counters.add(frameBytes, 1);
+    }
+
+    /**
+     * Creates an in-memory encoder configured the way saveStackHDF5 does.
+     */
+    static FFMpegEncoder newEncoder(int width, int height, int bitDepth) {
+        H5j_Writer writer = new H5j_Writer();
+        FFMpegEncoder encoder = new FFMpegEncoder(
+                (String) null,
+                writer.nearestPowerOfEight(width), writer.nearestPowerOfEight(height), bitDepth,
+                "libx265",
+                AV_CODEC_ID_H265,
+                new EncoderSettings());
+        if (!encoder.isReady())
+            throw new IllegalStateException("FFMpegEncoder failed to initialize");
+        return encoder;
+    }
+
+    /**
+     * The LUT saveStackHDF5 maps the synthetic slices through: they hold
+     * 12-bit values, for which IntensityRange.measure() gives IDENTITY.
+     */
+    private static final short[] LUT = IntensityRange.IDENTITY.lut();
+
+    /** Copies a slice the way saveStackHDF5 does, 16-bit ones through the IntensityRange LUT. */
+    static void copy(FFMpegEncoder encoder, Object pixels, int width, int height, int bitDepth) {
+        if (bitDepth == 8)
+            encoder.setPlane((byte[]) pixels, width, height, width);
+        else
+            encoder.setPlane((short[]) pixels, width, height, width, LUT);
+    }
+}
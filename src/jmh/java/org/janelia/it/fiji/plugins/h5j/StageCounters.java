@@ -0,0 +1,37 @@
+/*
+ * Copyright 2015 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+
+package org.janelia.it.fiji.plugins.h5j;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Secondary results reported next to each benchmark's ops/s: uncompressed
+ * input megabytes and frames processed, which JMH turns into MB/s and
+ * frames/s.
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+public class StageCounters {
+    public double megabytes;
+    public long frames;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+        megabytes = 0;
+        frames = 0;
+    }
+
+    void add(long bytes, int frameCount) {
+        megabytes += bytes / 1e6;
+        frames += frameCount;
+    }
+}
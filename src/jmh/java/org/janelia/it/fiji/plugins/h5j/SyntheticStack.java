@@ -0,0 +1,62 @@
+/*
+ * Copyright 2015 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+
+package org.janelia.it.fiji.plugins.h5j;
+
+import java.util.Random;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+/**
+ * Deterministic test volumes for the benchmarks: smooth blobs plus noise,
+ * so the encoder sees roughly microscope-like content rather than a
+ * constant or purely random plane.
+ */
+final class SyntheticStack {
+
+    private SyntheticStack() {
+    }
+
+    /**
+     * Returns depth slices of width x height, as byte[] for bitDepth 8 and
+     * as short[] holding 12-bit values otherwise.
+     */
+    static Object[] slices(int width, int height, int depth, int bitDepth) {
+        Random random = new Random(42);
+        int max = bitDepth == 8 ? 255 : 4095;
+        Object[] slices = new Object[depth];
+        for (int z = 0; z < depth; z++) {
+            byte[] bytes = bitDepth == 8 ? new byte[width * height] : null;
+            short[] shorts = bitDepth == 8 ? null : new short[width * height];
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    double blob = Math.sin(x * 0.02 + z * 0.1) * Math.cos(y * 0.015 - z * 0.05);
+                    int value = (int) ((blob * blob) * max * 0.8 + random.nextInt(Math.max(1, max / 16)));
+                    value = Math.min(max, value);
+                    if (bytes != null)
+                        bytes[y * width + x] = (byte) value;
+                    else
+                        shorts[y * width + x] = (short) value;
+                }
+            }
+            slices[z] = bytes != null ? bytes : shorts;
+        }
+        return slices;
+    }
+
+    static ImagePlus image(int width, int height, int depth, int bitDepth) {
+        ImageStack stack = new ImageStack(width, height);
+        for (Object pixels : slices(width, height, depth, bitDepth))
+            stack.addSlice(null, pixels);
+        return new ImagePlus("synthetic", stack);
+    }
+
+    static long frameBytes(int width, int height, int bitDepth) {
+        return (long) width * height * (bitDepth == 8 ? 1 : 2);
+    }
+}
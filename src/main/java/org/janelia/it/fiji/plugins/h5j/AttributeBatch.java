@@ -0,0 +1,80 @@
+/*
+ * Copyright 2015 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+
+package org.janelia.it.fiji.plugins.h5j;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import ch.systemsx.cisd.hdf5.IHDF5Writer;
+
+/**
+ * Attributes collected while a file is written and stored together at the
+ * end. This defers the attribute writes rather than reducing them: jhdf5
+ * has no bulk call, so each attribute is still one setAttr, opening and
+ * closing its object. What changes is that they no longer interleave with
+ * the channels' stream writes, and are made in one pass, grouped by
+ * object, from a single thread holding the writer's lock.
+ *
+ * Safe to fill from several channel threads.
+ */
+final class AttributeBatch {
+
+    /** Attribute values by name, by object path, in the order they were set. */
+    private final Map<String, Map<String, Object>> attributes = new LinkedHashMap<>();
+
+    synchronized void set(String path, String name, long value) {
+        put(path, name, value);
+    }
+
+    synchronized void set(String path, String name, double value) {
+        put(path, name, value);
+    }
+
+    synchronized void set(String path, String name, String value) {
+        put(path, name, value);
+    }
+
+    synchronized void set(String path, String name, double[] value) {
+        put(path, name, value.clone());
+    }
+
+    synchronized void set(String path, String name, long[] value) {
+        put(path, name, value.clone());
+    }
+
+    private void put(String path, String name, Object value) {
+        attributes.computeIfAbsent(path, p -> new LinkedHashMap<>()).put(name, value);
+    }
+
+    /**
+     * Writes every attribute set so far and forgets them. The objects must
+     * exist by then.
+     */
+    synchronized void write(IHDF5Writer writer) {
+        synchronized (writer) {
+            for (Map.Entry<String, Map<String, Object>> object : attributes.entrySet()) {
+                String path = object.getKey();
+                for (Map.Entry<String, Object> attribute : object.getValue().entrySet()) {
+                    String name = attribute.getKey();
+                    Object value = attribute.getValue();
+                    if (value instanceof Long)
+                        writer.int64().setAttr(path, name, (Long) value);
+                    else if (value instanceof Double)
+                        writer.float64().setAttr(path, name, (Double) value);
+                    else if (value instanceof double[])
+                        writer.float64().setArrayAttr(path, name, (double[]) value);
+                    else if (value instanceof long[])
+                        writer.int64().setArrayAttr(path, name, (long[]) value);
+                    else
+                        writer.string().setAttr(path, name, (String) value);
+                }
+            }
+        }
+        attributes.clear();
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2015 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+
+package org.janelia.it.fiji.plugins.h5j;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import ch.systemsx.cisd.hdf5.IHDF5Reader;
+
+/**
+ * Finds the slices of a channel whose samples are all equal (or within a
+ * tolerance), typically empty background in sparse volumes. Such a slice
+ * is encoded from a frame filled with its value instead of its pixels,
+ * which costs no per-pixel work and, repeated, almost no bits. The runs
+ * are recorded on the channel dataset as the int64 array attribute
+ * constant_slices of (first slice, slice count, value) triples, so the
+ * stream keeps one frame per slice and readers that ignore the attribute
+ * still see every slice.
+ *
+ * Slices must be added in order, from one thread at a time.
+ */
+final class ConstantSlices {
+
+    static final String ATTRIBUTE = "constant_slices";
+
+    /** Runs beyond this are not recorded, to keep the attribute compact. */
+    static final int MAX_RUNS = 2048;
+
+    private final int tolerance;
+    private final List<long[]> runs = new ArrayList<>();
+    private int slices;
+    private int constant;
+
+    /**
+     * @param tolerance largest difference between the samples of a slice
+     *                  for it to count as constant; its value is then the
+     *                  middle of their range
+     */
+    ConstantSlices(int tolerance) {
+        this.tolerance = Math.max(0, tolerance);
+    }
+
+    /**
+     * Scans the next slice, a byte[] or short[] plane, and returns its
+     * value if it is constant, else -1. Stops at the first pair of samples
+     * further apart than the tolerance, so slices with content cost little.
+     */
+    int add(Object pixels) {
+        int value = pixels instanceof byte[] ? value((byte[]) pixels) : value((short[]) pixels);
+        if (value >= 0) {
+            constant++;
+            long[] last = runs.isEmpty() ? null : runs.get(runs.size() - 1);
+            if (last != null && last[0] + last[1] == slices && last[2] == value)
+                last[1]++;
+            else
+                runs.add(new long[]{slices, 1, value});
+        }
+        slices++;
+        return value;
+    }
+
+    private int value(byte[] px) {
+        int min = px[0] & 0xff;
+        int max = min;
+        for (byte b : px) {
+            int v = b & 0xff;
+            if (v < min)
+                min = v;
+            else if (v > max)
+                max = v;
+            if (max - min > tolerance)
+                return -1;
+        }
+        return (min + max) / 2;
+    }
+
+    private int value(short[] px) {
+        int min = px[0] & 0xffff;
+        int max = min;
+        for (short s : px) {
+            int v = s & 0xffff;
+            if (v < min)
+                min = v;
+            else if (v > max)
+                max = v;
+            if (max - min > tolerance)
+                return -1;
+        }
+        return (min + max) / 2;
+    }
+
+    /** Number of constant slices added so far. */
+    int count() {
+        return constant;
+    }
+
+    /** The runs found so far as (first slice, slice count, value) triples. */
+    long[] runs() {
+        long[] flat = new long[runs.size() * 3];
+        for (int i = 0; i < runs.size(); i++)
+            System.arraycopy(runs.get(i), 0, flat, i * 3, 3);
+        return flat;
+    }
+
+    /** Records the runs on path, if there are any and not too many. */
+    void writeAttributes(AttributeBatch attributes, String path) {
+        if (runs.isEmpty() || runs.size() > MAX_RUNS)
+            return;
+        attributes.set(path, ATTRIBUTE, runs());
+    }
+
+    /**
+     * Value of every slice of the channel at path that was recorded as
+     * constant, -1 for the others; null if none was.
+     */
+    static int[] read(IHDF5Reader reader, String path, int frames) {
+        if (!reader.object().hasAttribute(path, ATTRIBUTE))
+            return null;
+        return values(reader.int64().getArrayAttr(path, ATTRIBUTE), frames);
+    }
+
+    /**
+     * Value of every slice in runs, as returned by runs(), -1 for slices
+     * not in any; runs past frames are cut off.
+     */
+    static int[] values(long[] flat, int frames) {
+        int[] values = new int[frames];
+        Arrays.fill(values, -1);
+        for (int i = 0; i + 2 < flat.length; i += 3) {
+            for (long z = flat[i]; z < flat[i] + flat[i + 1] && z < frames; z++)
+                values[(int) z] = (int) flat[i + 2];
+        }
+        return values;
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright 2015 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+
+package org.janelia.it.fiji.plugins.h5j;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.UnaryOperator;
+
+import ij.ImageStack;
+
+/**
+ * Picks the CRF of a lossy x265 channel from trial encodes of a sample of
+ * its slices, instead of the fixed default: a few short runs of
+ * consecutive slices, cropped to at most MAX_SIZE square around the
+ * center, are encoded into memory at the CRF under test and decoded
+ * again, and the PSNR against the planes the encoder was given and the
+ * encoded bits per voxel are measured. The CRF is bisected to the highest
+ * (cheapest) one reaching the target PSNR, then, if that is over the size
+ * target, to the lowest one within it. About six trials are needed per
+ * target, each of RUNS x RUN_LENGTH frames.
+ *
+ * The writer records the chosen CRF on the channel dataset as encoder_crf
+ * and encoder_x265_params, and its trial as measured_psnr and
+ * measured_bits_per_voxel.
+ */
+final class CrfTuner {
+
+    static final int MIN_CRF = 0;
+    static final int MAX_CRF = 36;
+
+    /** Sampled runs of consecutive slices, spread evenly over the stack. */
+    static final int RUNS = 3;
+    static final int RUN_LENGTH = 4;
+
+    /** Largest width and height of the trial frames. */
+    static final int MAX_SIZE = 1024;
+
+    /** Reported for trials that decode without error. */
+    static final double MAX_PSNR = 100;
+
+    /** The outcome of encoding the sample at one CRF. */
+    static final class Trial {
+        final int crf;
+        final double psnr;
+        final double bitsPerVoxel;
+
+        Trial(int crf, double psnr, double bitsPerVoxel) {
+            this.crf = crf;
+            this.psnr = psnr;
+            this.bitsPerVoxel = bitsPerVoxel;
+        }
+
+        void writeAttributes(AttributeBatch attributes, String path) {
+            attributes.set(path, "measured_psnr", psnr);
+            attributes.set(path, "measured_bits_per_voxel", bitsPerVoxel);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "CRF %d (%.2f dB PSNR, %.3f bits/voxel)", crf, psnr, bitsPerVoxel);
+        }
+    }
+
+    private final Object[] samples;
+    private final int stride;
+    private final int offset;
+    private final int width;
+    private final int height;
+    private final int bdepth;
+    private final short[] lut;
+    private final EncoderSettings settings;
+    private final Map<Integer, Trial> trials = new HashMap<>();
+    private Runnable beforeTrial;
+
+    private CrfTuner(Object[] samples, int w, int h, int bdepth, short[] lut, EncoderSettings settings) {
+        this.samples = samples;
+        this.stride = w;
+        this.width = Math.min(w, MAX_SIZE);
+        this.height = Math.min(h, MAX_SIZE);
+        this.offset = (h - height) / 2 * w + (w - width) / 2;
+        this.bdepth = bdepth;
+        this.lut = lut;
+        this.settings = settings;
+    }
+
+    /**
+     * Reads the sample of the channel whose slices are at indices, passing
+     * them through convert as the channel's encode does; 16-bit slices are
+     * mapped to 12 bits through lut.
+     */
+    static CrfTuner sample(ImageStack stack, int[] indices, UnaryOperator<Object> convert,
+                           int w, int h, int bdepth, short[] lut, EncoderSettings settings)
+            throws InterruptedException {
+        int[] sampled;
+        if (indices.length <= RUNS * RUN_LENGTH) {
+            sampled = indices;
+        } else {
+            sampled = new int[RUNS * RUN_LENGTH];
+            for (int r = 0; r < RUNS; r++) {
+                int first = (int) ((long) (indices.length - RUN_LENGTH) * (2 * r + 1) / (2 * RUNS));
+                for (int i = 0; i < RUN_LENGTH; i++)
+                    sampled[r * RUN_LENGTH + i] = indices[first + i];
+            }
+        }
+        Object[] samples = new Object[sampled.length];
+        try (SliceReader slices = new SliceReader(stack, sampled, 0, convert)) {
+            for (int i = 0; i < samples.length; i++)
+                samples[i] = slices.next();
+        }
+        return new CrfTuner(samples, w, h, bdepth, lut, settings);
+    }
+
+    /**
+     * The trial of the chosen CRF, or null if a trial could not be encoded
+     * or decoded. beforeTrial runs before each trial encode; it may throw,
+     * e.g. a CancellationException, to stop tuning.
+     */
+    Trial tune(Runnable beforeTrial) {
+        this.beforeTrial = beforeTrial;
+        // With no quality target, start from the best quality
+        int crf = MIN_CRF;
+        double targetPsnr = settings.getTargetPsnr();
+        if (targetPsnr > 0) {
+            // highest CRF reaching the target; MIN_CRF if none does
+            int lo = MIN_CRF;
+            int hi = MAX_CRF;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                Trial trial = trial(mid);
+                if (trial == null)
+                    return null;
+                if (trial.psnr >= targetPsnr) {
+                    crf = mid;
+                    lo = mid + 1;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+        }
+        double budget = settings.getTargetBitsPerVoxel();
+        if (budget > 0) {
+            Trial trial = trial(crf);
+            if (trial == null)
+                return null;
+            if (trial.bitsPerVoxel > budget) {
+                // lowest higher CRF within the budget; MAX_CRF if none is
+                int lo = crf + 1;
+                int hi = MAX_CRF;
+                crf = MAX_CRF;
+                while (lo <= hi) {
+                    int mid = (lo + hi) >>> 1;
+                    trial = trial(mid);
+                    if (trial == null)
+                        return null;
+                    if (trial.bitsPerVoxel <= budget) {
+                        crf = mid;
+                        hi = mid - 1;
+                    } else {
+                        lo = mid + 1;
+                    }
+                }
+            }
+        }
+        return trial(crf);
+    }
+
+    /** Encodes and decodes the sample at crf, once per CRF. */
+    private Trial trial(int crf) {
+        if (trials.containsKey(crf))
+            return trials.get(crf);
+        beforeTrial.run();
+        Trial trial = null;
+        byte[] stream = encode(crf);
+        ImageStack decoded = stream == null ? null
+                : H5j_Reader.decodeStream(stream, width, height, samples.length);
+        if (decoded != null) {
+            double error = 0;
+            for (int i = 0; i < samples.length; i++)
+                error += PixelKernels.squaredError(samples[i], offset, stride, decoded.getPixels(i + 1),
+                        width, height, lut);
+            double voxels = (double) samples.length * width * height;
+            double peak = bdepth == 8 ? 255 : IntensityRange.MAX_CODE;
+            double psnr = error == 0 ? MAX_PSNR
+                    : Math.min(MAX_PSNR, 10 * Math.log10(peak * peak * voxels / error));
+            trial = new Trial(crf, psnr, stream.length * 8 / voxels);
+        }
+        trials.put(crf, trial);
+        return trial;
+    }
+
+    /** The sample encoded at crf into memory, or null if the encoder failed. */
+    private byte[] encode(int crf) {
+        try (FFMpegEncoder encoder = new FFMpegEncoder(null,
+                H5j_Writer.nearestPowerOfEight(width), H5j_Writer.nearestPowerOfEight(height), bdepth,
+                settings.encoderName(),
+                settings.codecId(),
+                settings.copy().setCrf(crf))) {
+            if (!encoder.isReady())
+                return null;
+            for (Object pixels : samples) {
+                if (bdepth == 8)
+                    encoder.setPlane((byte[]) pixels, offset, width, height, stride);
+                else
+                    encoder.setPlane((short[]) pixels, offset, width, height, stride, lut);
+                encoder.write_frame();
+            }
+            encoder.close();
+            if (encoder.buffer_size() <= 0)
+                return null;
+            byte[] stream = new byte[encoder.buffer_size()];
+            encoder.buffer().get(stream);
+            encoder.free_buffer();
+            return stream;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2015 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+
+package org.janelia.it.fiji.plugins.h5j;
+
+import java.util.Collections;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+
+/**
+ * Runs the three stages of encoding a channel concurrently: filling a
+ * frame from the next slice, converting it to the codec's pixel format and
+ * encoding it. The stages pass a ring of preallocated frame slots through
+ * bounded queues, so up to depth frames are in flight and the encoder no
+ * longer waits while the next slice is copied.
+ *
+ * Fill and convert run on their own threads and encoding on the calling
+ * thread. The convert stage only runs for encoders whose frames need
+ * sws_scale; the direct gray paths fill the codec frame itself, and their
+ * slots go from fill straight to encode. The time each stage spends busy
+ * is kept, and utilization() shows which stage limits throughput.
+ */
+final class EncodePipeline {
+
+    private final FFMpegEncoder encoder;
+    private final int depth;
+    private final boolean convert;
+    private long fillNanos;
+    private long convertNanos;
+    private long encodeNanos;
+    private long wallNanos;
+
+    /**
+     * @param depth   number of frame slots in the ring, at least 2 for the
+     *                stages to overlap
+     * @param convert whether the filled frames need sws_scale; see
+     *                FFMpegEncoder.writes_direct()
+     */
+    EncodePipeline(FFMpegEncoder encoder, int depth, boolean convert) {
+        this.encoder = encoder;
+        this.depth = Math.max(2, depth);
+        this.convert = convert;
+    }
+
+    /**
+     * Encodes every slice. fill copies a slice's pixels into a slot (one of
+     * the Slot.setPlane methods); sliceDone is called on the calling thread
+     * after each frame is encoded. A failure in any stage stops the others
+     * and is rethrown as an ExecutionException.
+     */
+    void run(SliceReader slices, BiConsumer<FFMpegEncoder.Slot, Object> fill, Runnable sliceDone)
+            throws InterruptedException, ExecutionException {
+        FFMpegEncoder.Slot[] ring = encoder.slots(depth);
+        BlockingQueue<FFMpegEncoder.Slot> free = new ArrayBlockingQueue<>(ring.length);
+        BlockingQueue<FFMpegEncoder.Slot> filled = new ArrayBlockingQueue<>(ring.length);
+        BlockingQueue<FFMpegEncoder.Slot> converted = convert ? new ArrayBlockingQueue<>(ring.length) : filled;
+        Collections.addAll(free, ring);
+        int n = slices.size();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread caller = Thread.currentThread();
+
+        Thread filler = stage("H5J fill", failure, caller, () -> {
+            for (int i = 0; i < n; i++) {
+                FFMpegEncoder.Slot slot = free.take();
+                long start = System.nanoTime();
+                fill.accept(slot, slices.next());
+                fillNanos += System.nanoTime() - start;
+                filled.put(slot);
+            }
+        });
+        Thread converter = !convert ? null : stage("H5J convert", failure, caller, () -> {
+            for (int i = 0; i < n; i++) {
+                FFMpegEncoder.Slot slot = filled.take();
+                long start = System.nanoTime();
+                slot.convert();
+                convertNanos += System.nanoTime() - start;
+                converted.put(slot);
+            }
+        });
+
+        long wallStart = System.nanoTime();
+        try {
+            for (int i = 0; i < n; i++) {
+                FFMpegEncoder.Slot slot = converted.take();
+                long start = System.nanoTime();
+                encoder.encode(slot);
+                encodeNanos += System.nanoTime() - start;
+                free.put(slot);
+                sliceDone.run();
+            }
+        } catch (InterruptedException e) {
+            // a failed stage interrupts the caller; anything else is a real interrupt
+            if (failure.get() == null)
+                throw e;
+        } finally {
+            stop(filler);
+            if (converter != null)
+                stop(converter);
+            wallNanos = System.nanoTime() - wallStart;
+        }
+        if (failure.get() != null) {
+            Thread.interrupted();
+            throw new ExecutionException(failure.get());
+        }
+    }
+
+    private interface Stage {
+        void run() throws InterruptedException;
+    }
+
+    private static Thread stage(String name, AtomicReference<Throwable> failure, Thread caller, Stage stage) {
+        Thread thread = new Thread(() -> {
+            try {
+                stage.run();
+            } catch (InterruptedException e) {
+                // stopped by the caller
+            } catch (RuntimeException | Error e) {
+                if (failure.compareAndSet(null, e))
+                    caller.interrupt();
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    private static void stop(Thread thread) {
+        thread.interrupt();
+        boolean interrupted = false;
+        while (true) {
+            try {
+                thread.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /** Fraction of the last run's wall time each stage was busy: fill, convert, encode. */
+    double[] utilization() {
+        double wall = Math.max(1, wallNanos);
+        return new double[]{fillNanos / wall, convertNanos / wall, encodeNanos / wall};
+    }
+}
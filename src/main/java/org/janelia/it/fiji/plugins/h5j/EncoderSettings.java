@@ -0,0 +1,276 @@
+/*
+ * Copyright 2015 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+
+package org.janelia.it.fiji.plugins.h5j;
+
+import static org.bytedeco.ffmpeg.global.avcodec.AV_CODEC_ID_FFV1;
+import static org.bytedeco.ffmpeg.global.avcodec.AV_CODEC_ID_H265;
+
+/**
+ * Codec and x265 tuning for one write: preset, quality and threading. The
+ * defaults reproduce what the writer has always used (lossy x265, medium
+ * preset, CRF 15 for 8-bit and 7 for 16-bit data, psy-rd 1.0, GOP of 12).
+ * With a target PSNR or size and no CRF set, the writer instead picks each
+ * channel's CRF from trial encodes (see CrfTuner).
+ */
+public class EncoderSettings {
+
+    /** Lossy HEVC, the default. */
+    public static final String CODEC_X265 = "x265";
+    /** HEVC with x265's lossless mode; 16-bit data is still stored in 12 bits. */
+    public static final String CODEC_X265_LOSSLESS = "x265-lossless";
+    /** FFV1, lossless intra-only with slice threads; 16-bit data keeps all 16 bits. */
+    public static final String CODEC_FFV1 = "ffv1";
+
+    public static final String[] CODECS = {CODEC_X265, CODEC_X265_LOSSLESS, CODEC_FFV1};
+
+    public static final String[] PRESETS = {
+            "ultrafast", "superfast", "veryfast", "faster", "fast",
+            "medium", "slow", "slower", "veryslow", "placebo"
+    };
+
+    /** Selects the default CRF for the stack's bit depth. */
+    public static final int AUTO = -1;
+
+    private String codec = CODEC_X265;
+    private String preset = "medium";
+    private int crf = AUTO;
+    private double psyRd = 1.0;
+    private int gopSize = 12;
+    private String pools = "";
+    private int frameThreads = 0;
+    private int lookahead = AUTO;
+    private boolean wpp = true;
+    private double targetPsnr = 0;
+    private double targetBitsPerVoxel = 0;
+
+    public EncoderSettings copy() {
+        EncoderSettings copy = new EncoderSettings();
+        copy.codec = codec;
+        copy.preset = preset;
+        copy.crf = crf;
+        copy.psyRd = psyRd;
+        copy.gopSize = gopSize;
+        copy.pools = pools;
+        copy.frameThreads = frameThreads;
+        copy.lookahead = lookahead;
+        copy.wpp = wpp;
+        copy.targetPsnr = targetPsnr;
+        copy.targetBitsPerVoxel = targetBitsPerVoxel;
+        return copy;
+    }
+
+    public String getCodec() {
+        return codec;
+    }
+
+    /**
+     * Selects one of CODECS.
+     *
+     * @throws IllegalArgumentException for any other name, rather than
+     *                                  writing a lossy stream in its place
+     */
+    public EncoderSettings setCodec(String codec) {
+        for (String c : CODECS) {
+            if (c.equalsIgnoreCase(codec == null ? "" : codec.trim())) {
+                this.codec = c;
+                return this;
+            }
+        }
+        throw new IllegalArgumentException("Unknown codec " + codec + ", expected one of "
+                + String.join(", ", CODECS));
+    }
+
+    public boolean isLossless() {
+        return !CODEC_X265.equals(codec);
+    }
+
+    /** Whether 16-bit samples are stored as they are rather than fitted to 12 bits. */
+    public boolean keeps16Bit() {
+        return CODEC_FFV1.equals(codec);
+    }
+
+    /** FFmpeg encoder name of the codec. */
+    String encoderName() {
+        return CODEC_FFV1.equals(codec) ? "ffv1" : "libx265";
+    }
+
+    int codecId() {
+        return CODEC_FFV1.equals(codec) ? AV_CODEC_ID_FFV1 : AV_CODEC_ID_H265;
+    }
+
+    public String getPreset() {
+        return preset;
+    }
+
+    /**
+     * Selects one of PRESETS.
+     *
+     * @throws IllegalArgumentException for any other name, which x265
+     *                                  would only reject when the encoder opens
+     */
+    public EncoderSettings setPreset(String preset) {
+        for (String p : PRESETS) {
+            if (p.equalsIgnoreCase(preset == null ? "" : preset.trim())) {
+                this.preset = p;
+                return this;
+            }
+        }
+        throw new IllegalArgumentException("Unknown x265 preset " + preset + ", expected one of "
+                + String.join(", ", PRESETS));
+    }
+
+    /** CRF as set, or AUTO. */
+    public int getCrf() {
+        return crf;
+    }
+
+    /** CRF actually used for a stack of the given bit depth. */
+    public int getCrf(int bdepth) {
+        if (crf != AUTO)
+            return crf;
+        return bdepth == 8 ? 15 : 7;
+    }
+
+    public EncoderSettings setCrf(int crf) {
+        this.crf = crf;
+        return this;
+    }
+
+    public double getPsyRd() {
+        return psyRd;
+    }
+
+    public EncoderSettings setPsyRd(double psyRd) {
+        this.psyRd = psyRd;
+        return this;
+    }
+
+    public int getGopSize() {
+        return gopSize;
+    }
+
+    public EncoderSettings setGopSize(int gopSize) {
+        this.gopSize = gopSize;
+        return this;
+    }
+
+    /**
+     * x265 thread pool specification, e.g. "8" or "+,-" for one pool on the
+     * first NUMA node; empty for x265's default of one pool per node.
+     */
+    public String getPools() {
+        return pools;
+    }
+
+    public EncoderSettings setPools(String pools) {
+        this.pools = pools == null ? "" : pools.trim();
+        return this;
+    }
+
+    /** Concurrently encoded frames per encoder, 0 for x265's choice. */
+    public int getFrameThreads() {
+        return frameThreads;
+    }
+
+    public EncoderSettings setFrameThreads(int frameThreads) {
+        this.frameThreads = Math.max(0, frameThreads);
+        return this;
+    }
+
+    /** Rate control lookahead in frames, or AUTO for the preset's value. */
+    public int getLookahead() {
+        return lookahead;
+    }
+
+    public EncoderSettings setLookahead(int lookahead) {
+        this.lookahead = lookahead;
+        return this;
+    }
+
+    /** Wavefront parallel processing of rows within a frame. */
+    public boolean isWpp() {
+        return wpp;
+    }
+
+    public EncoderSettings setWpp(boolean wpp) {
+        this.wpp = wpp;
+        return this;
+    }
+
+    /** Quality, in dB PSNR, a tuned CRF must reach; 0 for none. */
+    public double getTargetPsnr() {
+        return targetPsnr;
+    }
+
+    public EncoderSettings setTargetPsnr(double targetPsnr) {
+        this.targetPsnr = Math.max(0, targetPsnr);
+        return this;
+    }
+
+    /**
+     * Size, in encoded bits per voxel, a tuned CRF must stay within; 0 for
+     * none. Takes precedence over the target PSNR when both cannot be met.
+     */
+    public double getTargetBitsPerVoxel() {
+        return targetBitsPerVoxel;
+    }
+
+    public EncoderSettings setTargetBitsPerVoxel(double targetBitsPerVoxel) {
+        this.targetBitsPerVoxel = Math.max(0, targetBitsPerVoxel);
+        return this;
+    }
+
+    /** Whether the CRF is left to CrfTuner: lossy, no CRF set, and a target given. */
+    public boolean isCrfTuned() {
+        return !isLossless() && crf == AUTO && (targetPsnr > 0 || targetBitsPerVoxel > 0);
+    }
+
+    /**
+     * The x265-params string for a stack of the given bit depth.
+     */
+    public String x265Params(int bdepth) {
+        StringBuilder sb = new StringBuilder();
+        if (CODEC_X265_LOSSLESS.equals(codec))
+            sb.append("lossless=1");
+        else
+            sb.append("crf=").append(getCrf(bdepth));
+        sb.append(":psy-rd=").append(psyRd);
+        if (!pools.isEmpty())
+            sb.append(":pools=").append(pools);
+        if (frameThreads > 0)
+            sb.append(":frame-threads=").append(frameThreads);
+        if (lookahead != AUTO)
+            sb.append(":rc-lookahead=").append(lookahead);
+        if (!wpp)
+            sb.append(":wpp=0");
+        return sb.toString();
+    }
+
+    /**
+     * Records the settings used for a stack of the given bit depth as
+     * attributes of path.
+     */
+    void writeAttributes(AttributeBatch attributes, String path, int bdepth) {
+        attributes.set(path, "encoder_codec", codec);
+        if (CODEC_FFV1.equals(codec))
+            return;
+        attributes.set(path, "encoder_preset", preset);
+        attributes.set(path, "encoder_gop_size", (long) gopSize);
+        if (isCrfTuned()) {
+            // the CRF and parameters are recorded per channel instead
+            if (targetPsnr > 0)
+                attributes.set(path, "encoder_target_psnr", targetPsnr);
+            if (targetBitsPerVoxel > 0)
+                attributes.set(path, "encoder_target_bits_per_voxel", targetBitsPerVoxel);
+            return;
+        }
+        if (!isLossless())
+            attributes.set(path, "encoder_crf", (long) getCrf(bdepth));
+        attributes.set(path, "encoder_x265_params", x265Params(bdepth));
+    }
+}
@@ -1,6 +1,12 @@
 
 package org.janelia.it.fiji.plugins.h5j;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
 import ij.IJ;
 import org.bytedeco.ffmpeg.avcodec.AVCodec;
 import org.bytedeco.ffmpeg.avcodec.AVCodecContext;
@@ -9,66 +15,111 @@ import org.bytedeco.ffmpeg.avformat.AVFormatContext;
 import org.bytedeco.ffmpeg.avformat.AVIOContext;
 import org.bytedeco.ffmpeg.avformat.AVOutputFormat;
 import org.bytedeco.ffmpeg.avformat.AVStream;
+import org.bytedeco.ffmpeg.avformat.Read_packet_Pointer_BytePointer_int;
+import org.bytedeco.ffmpeg.avformat.Seek_Pointer_long_int;
+import org.bytedeco.ffmpeg.avformat.Write_packet_Pointer_BytePointer_int;
 import org.bytedeco.ffmpeg.avutil.AVDictionary;
 import org.bytedeco.ffmpeg.avutil.AVFrame;
 import org.bytedeco.ffmpeg.avutil.AVRational;
-import org.bytedeco.ffmpeg.swscale.SwsContext;
 import org.bytedeco.javacpp.BytePointer;
-import org.bytedeco.javacpp.DoublePointer;
+import org.bytedeco.javacpp.Pointer;
 import org.bytedeco.javacpp.ShortPointer;
 
 import static org.bytedeco.ffmpeg.global.avcodec.AV_CODEC_CAP_DELAY;
 import static org.bytedeco.ffmpeg.global.avcodec.AV_CODEC_FLAG_GLOBAL_HEADER;
 import static org.bytedeco.ffmpeg.global.avcodec.AV_CODEC_ID_FFV1;
 import static org.bytedeco.ffmpeg.global.avcodec.AV_CODEC_ID_HEVC;
+import static org.bytedeco.ffmpeg.global.avcodec.AV_PKT_FLAG_KEY;
 import static org.bytedeco.ffmpeg.global.avcodec.FF_COMPLIANCE_EXPERIMENTAL;
 import static org.bytedeco.ffmpeg.global.avcodec.av_packet_alloc;
+import static org.bytedeco.ffmpeg.global.avcodec.av_packet_free;
 import static org.bytedeco.ffmpeg.global.avcodec.av_packet_rescale_ts;
 import static org.bytedeco.ffmpeg.global.avcodec.av_packet_unref;
 import static org.bytedeco.ffmpeg.global.avcodec.avcodec_alloc_context3;
 import static org.bytedeco.ffmpeg.global.avcodec.avcodec_find_encoder;
 import static org.bytedeco.ffmpeg.global.avcodec.avcodec_find_encoder_by_name;
+import static org.bytedeco.ffmpeg.global.avcodec.avcodec_free_context;
 import static org.bytedeco.ffmpeg.global.avcodec.avcodec_open2;
 import static org.bytedeco.ffmpeg.global.avcodec.avcodec_parameters_from_context;
 import static org.bytedeco.ffmpeg.global.avcodec.avcodec_receive_packet;
 import static org.bytedeco.ffmpeg.global.avcodec.avcodec_send_frame;
 import static org.bytedeco.ffmpeg.global.avdevice.avdevice_register_all;
+import static org.bytedeco.ffmpeg.global.avformat.AVFMT_FLAG_CUSTOM_IO;
 import static org.bytedeco.ffmpeg.global.avformat.AVFMT_GLOBALHEADER;
 import static org.bytedeco.ffmpeg.global.avformat.AVFMT_NOFILE;
 import static org.bytedeco.ffmpeg.global.avformat.AVIO_FLAG_WRITE;
+import static org.bytedeco.ffmpeg.global.avformat.AVSEEK_FORCE;
+import static org.bytedeco.ffmpeg.global.avformat.AVSEEK_SIZE;
 import static org.bytedeco.ffmpeg.global.avformat.av_guess_format;
 import static org.bytedeco.ffmpeg.global.avformat.av_write_frame;
 import static org.bytedeco.ffmpeg.global.avformat.av_write_trailer;
+import static org.bytedeco.ffmpeg.global.avformat.avformat_free_context;
 import static org.bytedeco.ffmpeg.global.avformat.avformat_alloc_context;
 import static org.bytedeco.ffmpeg.global.avformat.avformat_network_init;
 import static org.bytedeco.ffmpeg.global.avformat.avformat_new_stream;
 import static org.bytedeco.ffmpeg.global.avformat.avformat_write_header;
 import static org.bytedeco.ffmpeg.global.avformat.avio_close;
+import static org.bytedeco.ffmpeg.global.avformat.avio_alloc_context;
 import static org.bytedeco.ffmpeg.global.avformat.avio_close_dyn_buf;
+import static org.bytedeco.ffmpeg.global.avformat.avio_context_free;
+import static org.bytedeco.ffmpeg.global.avformat.avio_flush;
 import static org.bytedeco.ffmpeg.global.avformat.avio_open;
 import static org.bytedeco.ffmpeg.global.avformat.avio_open_dyn_buf;
+import static org.bytedeco.ffmpeg.global.avutil.AVERROR_EAGAIN;
+import static org.bytedeco.ffmpeg.global.avutil.AVERROR_EOF;
 import static org.bytedeco.ffmpeg.global.avutil.AV_ERROR_MAX_STRING_SIZE;
 import static org.bytedeco.ffmpeg.global.avutil.AV_NOPTS_VALUE;
 import static org.bytedeco.ffmpeg.global.avutil.AV_PIX_FMT_GRAY12;
+import static org.bytedeco.ffmpeg.global.avutil.AV_PIX_FMT_GRAY8;
 import static org.bytedeco.ffmpeg.global.avutil.AV_PIX_FMT_GRAY16;
 import static org.bytedeco.ffmpeg.global.avutil.AV_PIX_FMT_RGB24;
 import static org.bytedeco.ffmpeg.global.avutil.AV_PIX_FMT_YUV444P;
+import static org.bytedeco.ffmpeg.global.avutil.av_dict_free;
 import static org.bytedeco.ffmpeg.global.avutil.av_dict_set;
-import static org.bytedeco.ffmpeg.global.avutil.av_frame_alloc;
 import static org.bytedeco.ffmpeg.global.avutil.av_free;
-import static org.bytedeco.ffmpeg.global.avutil.av_image_alloc;
+import static org.bytedeco.ffmpeg.global.avutil.av_malloc;
 import static org.bytedeco.ffmpeg.global.avutil.av_make_error_string;
-import static org.bytedeco.ffmpeg.global.swscale.SWS_BICUBIC;
-import static org.bytedeco.ffmpeg.global.swscale.sws_getContext;
 import static org.bytedeco.ffmpeg.global.swscale.sws_scale;
 
-public class FFMpegEncoder {
+/**
+ * Encodes a sequence of planes into one video stream. An encoder holds
+ * native resources until close(), which must be called (try-with-resources
+ * works) even if construction failed; its frames then go back to the
+ * FramePool for the next encoder of the same shape.
+ */
+public class FFMpegEncoder implements AutoCloseable {
+    /**
+     * Destination for the muxed stream when encoding neither to a file nor
+     * to an in-memory buffer. Writes arrive in blocks of at most the IO
+     * buffer size, but the muxer may seek back and rewrite earlier bytes.
+     */
+    interface Output {
+        void write(byte[] data, int length, long offset);
+    }
+
     FFMpegEncoder(String file_name, int width, int height, int bdepth,
                   String codec_name/* = AV_CODEC_ID_MPEG4*/,
                   int codec_id,
-                  String options) {
-        picture_yuv = null;
-        picture_rgb = null;
+                  EncoderSettings settings) {
+        this(file_name, null, 0, width, height, bdepth, codec_name, codec_id, settings);
+    }
+
+    /**
+     * Encodes into output through a custom AVIOContext whose buffer holds
+     * io_buffer_size bytes, so no more than that is kept in memory.
+     */
+    FFMpegEncoder(Output output, int io_buffer_size, int width, int height, int bdepth,
+                  String codec_name,
+                  int codec_id,
+                  EncoderSettings settings) {
+        this(null, output, io_buffer_size, width, height, bdepth, codec_name, codec_id, settings);
+    }
+
+    private FFMpegEncoder(String file_name, Output output, int io_buffer_size,
+                          int width, int height, int bdepth,
+                          String codec_name,
+                          int codec_id,
+                          EncoderSettings settings) {
         container = null;
         use_buffer = false;
         _buffer_size = 0;
@@ -81,9 +132,7 @@ public class FFMpegEncoder {
         if (0 != (height % 2))
             IJ.log("WARNING: Video height is not a multiple of 2");
 
-        // codecs/formats are registered automatically in FFmpeg 4.0+
-        avdevice_register_all();
-        avformat_network_init();
+        init_once();
 
         AVCodec codec = avcodec_find_encoder_by_name(codec_name);
         if (codec == null && codec_id > 0) {
@@ -128,24 +177,38 @@ public class FFMpegEncoder {
         pCtx.width(width);
         pCtx.height(height);
         pCtx.bit_rate(width * height * 4);
-        pCtx.gop_size(12);
+        pCtx.gop_size(settings.getGopSize());
         pCtx.time_base(new AVRational().num(1).den(25));
         if ((fmt.flags() & AVFMT_GLOBALHEADER) > 0)
             pCtx.flags(AV_CODEC_FLAG_GLOBAL_HEADER);
         pCtx.strict_std_compliance(FF_COMPLIANCE_EXPERIMENTAL);
+        // Lossless modes store gray planes as they are; the YUV444P luma
+        // mapping would lose 8-bit levels and x265 keeps at most 12 bits.
+        boolean ffv1 = codec.id() == AV_CODEC_ID_FFV1;
         if (bdepth == 8) {
-            pCtx.pix_fmt(AV_PIX_FMT_YUV444P);
+            pCtx.pix_fmt(ffv1 || settings.isLossless() ? AV_PIX_FMT_GRAY8 : AV_PIX_FMT_YUV444P);
             _raw_format = AV_PIX_FMT_RGB24;
         } else {
-            pCtx.pix_fmt(AV_PIX_FMT_GRAY12);
+            pCtx.pix_fmt(ffv1 ? AV_PIX_FMT_GRAY16 : AV_PIX_FMT_GRAY12);
             _raw_format = AV_PIX_FMT_GRAY16;
         }
 
-        AVDictionary codec_options = new AVDictionary();
+        // freed at the end of construction, or by close() if it fails
+        AVDictionary codec_options = _options = new AVDictionary();
         switch (pCtx.codec_id()) {
             case AV_CODEC_ID_HEVC: {
-                av_dict_set(codec_options, "preset", "medium", 0);
-                av_dict_set(codec_options, "x265-params", options, 0);
+                av_dict_set(codec_options, "preset", settings.getPreset(), 0);
+                av_dict_set(codec_options, "x265-params", settings.x265Params(bdepth), 0);
+                break;
+            }
+            case AV_CODEC_ID_FFV1: {
+                // version 3 supports slices, which are encoded on separate threads
+                av_dict_set(codec_options, "level", "3", 0);
+                av_dict_set(codec_options, "slices", String.valueOf(FFV1_SLICES), 0);
+                av_dict_set(codec_options, "slicecrc", "1", 0);
+                av_dict_set(codec_options, "threads", settings.getFrameThreads() > 0
+                        ? String.valueOf(settings.getFrameThreads()) : "auto", 0);
+                pCtx.gop_size(1);
                 break;
             }
         }
@@ -159,7 +222,18 @@ public class FFMpegEncoder {
         /* open the output file */
         ioc = new AVIOContext();
         if ((fmt.flags() & AVFMT_NOFILE) == 0) {
-            if (file_name == null) {
+            if (output != null) {
+                _output = output;
+                STREAMS.put(container.address(), this);
+                BytePointer io_buffer = new BytePointer(av_malloc(io_buffer_size));
+                ioc = avio_alloc_context(io_buffer, io_buffer_size, 1, container,
+                        (Read_packet_Pointer_BytePointer_int) null, WRITE_PACKET, SEEK);
+                if (ioc == null) {
+                    IJ.log("Error allocating IO context for encoding");
+                    return;
+                }
+                container.flags(container.flags() | AVFMT_FLAG_CUSTOM_IO);
+            } else if (file_name == null) {
                 use_buffer = true;
                 _buffer = new BytePointer();
                 if (avio_open_dyn_buf(ioc) != 0) {
@@ -187,92 +261,556 @@ public class FFMpegEncoder {
             return;
         }
 
-        /* Get framebuffers */
-        if ((picture_yuv = av_frame_alloc()) == null) { // final frame format
-            IJ.log("Error allocating frame for YUV picture");
-            return;
-        }
-        if ((picture_rgb = av_frame_alloc()) == null) { // rgb version I can understand easily
-            IJ.log("Error allocating frame for RGB picture");
+        /* Get framebuffers, reused from earlier encoders of the same shape */
+        FramePool.Frames frames = FramePool.acquire(pCtx.width(), pCtx.height(), pCtx.pix_fmt(), _raw_format);
+        if (frames == null) {
+            IJ.log("Error allocating frames");
             return;
         }
+        _slot = new Slot(frames);
+        _native_bytes += frames.bytes + Math.max(0, io_buffer_size);
 
-        /* the image can be allocated by any means and av_image_alloc() is
-         * just the most convenient way if av_malloc() is to be used */
-        if (av_image_alloc(picture_yuv.data(), picture_yuv.linesize(),
-                pCtx.width(), pCtx.height(), pCtx.pix_fmt(), 1) < 0) {
-            IJ.log("Error allocating YUV frame buffer");
-            return;
-        }
-        if (av_image_alloc(picture_rgb.data(), picture_rgb.linesize(),
-                pCtx.width(), pCtx.height(), _raw_format, 1) < 0) {
-            IJ.log("Error allocating RGB frame buffer");
-            return;
+        if (avformat_write_header(container, codec_options) < 0)
+            IJ.log("Error writing stream header");
+        else
+            _header_written = true;
+        free_options();
+    }
+
+    private void free_options() {
+        if (_options != null) {
+            av_dict_free(_options);
+            _options = null;
         }
+    }
+
+    /** FFV1 slices per frame, i.e. how many threads can encode one frame. */
+    private static final int FFV1_SLICES = 16;
 
-        // Fill in frame parameters
-        picture_yuv.format(pCtx.pix_fmt());
-        picture_yuv.width(pCtx.width());
-        picture_yuv.height(pCtx.height());
-
-        picture_rgb.format(_raw_format);
-        picture_rgb.width(pCtx.width());
-        picture_rgb.height(pCtx.height());
-
-        /* Init scale & convert */
-        if ((Sctx = sws_getContext(
-                width,
-                height,
-                _raw_format,
-                pCtx.width(),
-                pCtx.height(),
-                pCtx.pix_fmt(),
-                SWS_BICUBIC, null, null, (DoublePointer) null)) == null) {
-            IJ.log("Error in scaling");
+    private static boolean _initialized;
+
+    /** Global FFmpeg setup, done once per JVM rather than per encoder. */
+    private static synchronized void init_once() {
+        if (_initialized)
             return;
-        }
+        // codecs/formats are registered automatically in FFmpeg 4.0+
+        avdevice_register_all();
+        avformat_network_init();
+        _initialized = true;
+    }
+
+    /**
+     * Copies an 8-bit gray plane into the encoder. For a YUV444P codec the
+     * luma plane is written directly, with the same limited-range mapping
+     * sws_scale applies to gray RGB, and chroma is set to neutral once; the
+     * RGB replication and colorspace conversion are skipped entirely.
+     */
+    void setPlane(byte[] pixels, int width, int height, int stride) {
+        _slot.setPlane(pixels, 0, width, height, stride);
+    }
+
+    /**
+     * As setPlane(byte[], int, int, int), reading the plane from a larger
+     * image starting at index offset, e.g. one tile of a mosaic.
+     */
+    void setPlane(byte[] pixels, int offset, int width, int height, int stride) {
+        _slot.setPlane(pixels, offset, width, height, stride);
+    }
+
+    /**
+     * Interleaves three 8-bit planes into the RGB24 input frame, one native
+     * copy per row. Pixels outside width x height are left untouched.
+     */
+    void setPlane(byte[] r, byte[] g, byte[] b, int width, int height, int stride) {
+        _slot.setPlane(r, g, b, 0, width, height, stride);
+    }
 
-        avformat_write_header(container, codec_options);
+    /**
+     * Copies a 16-bit plane into the encoder, shifting each value left by
+     * shift bits, one native copy per row. For a GRAY12 codec the samples
+     * are reduced to 12 bits here and written straight into the codec frame,
+     * as sws_scale would have done. Pixels outside width x height are left
+     * untouched.
+     */
+    void setPlane(short[] pixels, int width, int height, int stride, int shift) {
+        _slot.setPlane(pixels, width, height, stride, shift);
     }
 
-    void setPixelIntensity(int x, int y, int c, byte value) {
-        BytePointer bp = new BytePointer(picture_rgb.data().get(0));
-        bp.put(y * picture_rgb.linesize().get(0) + x * 3 + c, value);
-        bp.close();
+    /**
+     * Copies a 16-bit plane into the encoder through lut, which maps every
+     * unsigned sample to a 12-bit code (see IntensityRange). For a GRAY12
+     * codec the codes go straight into the codec frame; otherwise they are
+     * written to the raw GRAY16 frame in its upper 12 bits. A GRAY16 codec
+     * (FFV1), or a null lut, takes the samples unchanged.
+     */
+    void setPlane(short[] pixels, int width, int height, int stride, short[] lut) {
+        _slot.setPlane(pixels, 0, width, height, stride, lut);
     }
 
-    void setPixelIntensity(int x, int y, short value) {
-        ShortPointer sp = new ShortPointer(picture_rgb.data().get(0));
-        sp.put(y * picture_rgb.linesize().get(0) / 2 + x, value);
-        sp.close();
+    /**
+     * As setPlane(short[], int, int, int, short[]), reading the plane from a
+     * larger image starting at index offset.
+     */
+    void setPlane(short[] pixels, int offset, int width, int height, int stride, short[] lut) {
+        _slot.setPlane(pixels, offset, width, height, stride, lut);
+    }
+
+    /**
+     * Fills width x height of the frame with one sample value, as setPlane
+     * would for a constant plane, without reading any source pixels; 16-bit
+     * values go through lut like setPlane(short[], ..., short[]). Returns
+     * false, leaving the frame alone, for pixel formats that need the
+     * regular path.
+     */
+    boolean setConstant(int value, int width, int height, short[] lut) {
+        return _slot.setConstant(value, width, height, lut);
+    }
+
+    /** Limited-range (BT.601) luma of a gray value, as sws_scale computes it for RGB24 input. */
+    private static final byte[] GRAY_TO_LUMA = new byte[256];
+
+    static {
+        for (int g = 0; g < 256; g++)
+            GRAY_TO_LUMA[g] = (byte) Math.round(16 + g * 219 / 255.0);
     }
 
     void write_frame() {
-        // convert from RGB24 to YUV
-        sws_scale(Sctx,              // sws context
-                picture_rgb.data(),        // src slice
-                picture_rgb.linesize(),    // src stride
-                0,                      // src slice origin y
-                pCtx.height(),      // src slice height
-                picture_yuv.data(),        // dst
-                picture_yuv.linesize());  // dst stride
+        convert_frame();
+        encode_frame();
+    }
+
+    /**
+     * Converts the raw input frame into the codec's pixel format.
+     */
+    void convert_frame() {
+        _slot.convert();
+    }
 
+    /**
+     * Encodes the frame last produced by convert_frame().
+     */
+    void encode_frame() {
+        encode(_slot);
+    }
+
+    /**
+     * Encodes the frame of slot, which must have been filled and converted.
+     * The codec copies the frame, so the slot can be refilled right away.
+     */
+    void encode(Slot slot) {
         /* encode the image */
         // use non-deprecated avcodec_encode_video2(...)
-        encode(picture_yuv);
+        encode(slot.picture_yuv);
     }
 
-    void close() {
-        int result = av_write_frame(container, (AVPacket) null); // flush
-        result = av_write_trailer(container);
-        {
-            if (use_buffer)
-                _buffer_size = avio_close_dyn_buf(container.pb(), _buffer);
+    /**
+     * Whether gray planes given to setPlane go straight into the codec
+     * frame, 16-bit ones when mapped through a LUT (lut), so that
+     * convert_frame() has nothing to do. Planes for the RGB24 or raw GRAY16
+     * input frame need sws_scale.
+     */
+    boolean writes_direct(boolean lut) {
+        int format = pCtx.pix_fmt();
+        if (format == AV_PIX_FMT_GRAY8 || format == AV_PIX_FMT_YUV444P || format == AV_PIX_FMT_GRAY16)
+            return true;
+        return format == AV_PIX_FMT_GRAY12 && lut;
+    }
+
+    /**
+     * count frame slots for a pipeline: the encoder's own slot followed by
+     * count - 1 more from the FramePool, which are returned on close().
+     * The slots can be filled, converted and encoded on different threads
+     * as long as each slot is used by one thread at a time.
+     */
+    Slot[] slots(int count) {
+        Slot[] slots = new Slot[Math.max(1, count)];
+        slots[0] = _slot;
+        for (int i = 1; i < slots.length; i++) {
+            FramePool.Frames frames = FramePool.acquire(pCtx.width(), pCtx.height(), pCtx.pix_fmt(), _raw_format);
+            if (frames == null)
+                throw new IllegalStateException("Unable to allocate frames");
+            slots[i] = new Slot(frames);
+            _extra_slots.add(slots[i]);
+            _native_bytes += frames.bytes;
+        }
+        return slots;
+    }
+
+    /**
+     * One codec frame with its raw input frame and converter, and the state
+     * of filling them. setPlane() writes into the encoder's own slot; a
+     * pipeline works on several (see slots()).
+     */
+    final class Slot {
+        final FramePool.Frames frames;
+        private final AVFrame picture_yuv;
+        private final AVFrame picture_rgb;
+        private final BytePointer raw_data;
+        private final int raw_linesize;
+        private ShortPointer raw_data16;
+        private BytePointer yuv_data;
+        private ShortPointer yuv_data16;
+        private int yuv_linesize;
+        private byte[] row8;
+        private short[] row16;
+        private boolean direct;
+        private boolean direct_ready;
+        /** Codec sample the frame holds throughout width x height after setConstant(), else -1. */
+        private int constant = -1;
+
+        Slot(FramePool.Frames frames) {
+            this.frames = frames;
+            picture_yuv = frames.codec;
+            picture_rgb = frames.raw;
+            // Cache the raw plane once and clear it, so that the padding outside
+            // the area written by setPlane() stays black for every frame.
+            raw_data = picture_rgb.data(0);
+            raw_linesize = picture_rgb.linesize(0);
+            Pointer.memset(raw_data, 0, (long) raw_linesize * pCtx.height());
+        }
+
+        void setPlane(byte[] pixels, int offset, int width, int height, int stride) {
+            long start = System.nanoTime();
+            if (pCtx.pix_fmt() == AV_PIX_FMT_GRAY8) {
+                prepare_direct();
+                for (int y = 0; y < height; y++)
+                    yuv_data.position((long) y * yuv_linesize).put(pixels, offset + y * stride, width);
+                yuv_data.position(0);
+                filled(start, true);
+                return;
+            }
+            if (pCtx.pix_fmt() != AV_PIX_FMT_YUV444P) {
+                setPlane(pixels, pixels, pixels, offset, width, height, stride);
+                return;
+            }
+            prepare_direct();
+            if (row8 == null || row8.length < width)
+                row8 = new byte[width];
+            byte[] row = row8;
+            for (int y = 0; y < height; y++) {
+                int src = offset + y * stride;
+                for (int x = 0; x < width; x++)
+                    row[x] = GRAY_TO_LUMA[pixels[src + x] & 0xff];
+                yuv_data.position((long) y * yuv_linesize).put(row, 0, width);
+            }
+            yuv_data.position(0);
+            filled(start, true);
+        }
+
+        void setPlane(byte[] r, byte[] g, byte[] b, int offset, int width, int height, int stride) {
+            long start = System.nanoTime();
+            int n = width * 3;
+            if (row8 == null || row8.length < n)
+                row8 = new byte[n];
+            byte[] row = row8;
+            for (int y = 0; y < height; y++) {
+                int src = offset + y * stride;
+                for (int x = 0, i = 0; x < width; x++, i += 3) {
+                    row[i] = r[src + x];
+                    row[i + 1] = g[src + x];
+                    row[i + 2] = b[src + x];
+                }
+                raw_data.position((long) y * raw_linesize).put(row, 0, n);
+            }
+            raw_data.position(0);
+            filled(start, false);
+        }
+
+        void setPlane(short[] pixels, int width, int height, int stride, int shift) {
+            long start = System.nanoTime();
+            boolean to_codec = pCtx.pix_fmt() == AV_PIX_FMT_GRAY12;
+            if (to_codec)
+                prepare_direct();
+            else if (raw_data16 == null)
+                raw_data16 = new ShortPointer(raw_data);
+            ShortPointer sp = to_codec ? yuv_data16 : raw_data16;
+            int lines = (to_codec ? yuv_linesize : raw_linesize) / 2;
+            if (shift == 0 && !to_codec) {
+                for (int y = 0; y < height; y++)
+                    sp.position((long) y * lines).put(pixels, y * stride, width);
+            } else {
+                if (row16 == null || row16.length < width)
+                    row16 = new short[width];
+                short[] row = row16;
+                for (int y = 0; y < height; y++) {
+                    int src = y * stride;
+                    if (to_codec) {
+                        for (int x = 0; x < width; x++)
+                            row[x] = (short) (((pixels[src + x] << shift) & 0xffff) >> 4);
+                    } else {
+                        for (int x = 0; x < width; x++)
+                            row[x] = (short) (pixels[src + x] << shift);
+                    }
+                    sp.position((long) y * lines).put(row, 0, width);
+                }
+            }
+            sp.position(0);
+            filled(start, to_codec);
+        }
+
+        void setPlane(short[] pixels, int offset, int width, int height, int stride, short[] lut) {
+            long start = System.nanoTime();
+            if (lut == null || pCtx.pix_fmt() == AV_PIX_FMT_GRAY16) {
+                // full 16-bit samples, for a GRAY16 codec straight into its frame
+                boolean full = pCtx.pix_fmt() == AV_PIX_FMT_GRAY16;
+                if (full)
+                    prepare_direct();
+                else if (raw_data16 == null)
+                    raw_data16 = new ShortPointer(raw_data);
+                ShortPointer sp = full ? yuv_data16 : raw_data16;
+                int lines = (full ? yuv_linesize : raw_linesize) / 2;
+                for (int y = 0; y < height; y++)
+                    sp.position((long) y * lines).put(pixels, offset + y * stride, width);
+                sp.position(0);
+                filled(start, full);
+                return;
+            }
+            boolean to_codec = pCtx.pix_fmt() == AV_PIX_FMT_GRAY12;
+            if (to_codec)
+                prepare_direct();
+            else if (raw_data16 == null)
+                raw_data16 = new ShortPointer(raw_data);
+            ShortPointer sp = to_codec ? yuv_data16 : raw_data16;
+            int lines = (to_codec ? yuv_linesize : raw_linesize) / 2;
+            int shift = to_codec ? 0 : 4;
+            if (row16 == null || row16.length < width)
+                row16 = new short[width];
+            short[] row = row16;
+            for (int y = 0; y < height; y++) {
+                int src = offset + y * stride;
+                for (int x = 0; x < width; x++)
+                    row[x] = (short) (lut[pixels[src + x] & 0xffff] << shift);
+                sp.position((long) y * lines).put(row, 0, width);
+            }
+            sp.position(0);
+            filled(start, to_codec);
+        }
+
+        boolean setConstant(int value, int width, int height, short[] lut) {
+            long start = System.nanoTime();
+            int format = pCtx.pix_fmt();
+            int sample;
+            if (format == AV_PIX_FMT_GRAY8)
+                sample = value;
+            else if (format == AV_PIX_FMT_YUV444P)
+                sample = GRAY_TO_LUMA[value] & 0xff;
+            else if (format == AV_PIX_FMT_GRAY16)
+                sample = value;
+            else if (format == AV_PIX_FMT_GRAY12 && lut != null)
+                sample = lut[value] & 0xffff;
             else
-                avio_close(container.pb());
+                return false;
+            // a frame still holding the same constant needs no copy at all
+            if (constant == sample && direct_ready) {
+                filled(start, true);
+                constant = sample;
+                return true;
+            }
+            prepare_direct();
+            if (format == AV_PIX_FMT_GRAY8 || format == AV_PIX_FMT_YUV444P) {
+                if (row8 == null || row8.length < width)
+                    row8 = new byte[width];
+                Arrays.fill(row8, 0, width, (byte) sample);
+                for (int y = 0; y < height; y++)
+                    yuv_data.position((long) y * yuv_linesize).put(row8, 0, width);
+                yuv_data.position(0);
+            } else {
+                if (row16 == null || row16.length < width)
+                    row16 = new short[width];
+                Arrays.fill(row16, 0, width, (short) sample);
+                int lines = yuv_linesize / 2;
+                for (int y = 0; y < height; y++)
+                    yuv_data16.position((long) y * lines).put(row16, 0, width);
+                yuv_data16.position(0);
+            }
+            filled(start, true);
+            constant = sample;
+            return true;
+        }
+
+        /** Records the copy time of a setPlane call and where its pixels went. */
+        private void filled(long start, boolean to_codec) {
+            direct = to_codec;
+            constant = -1;
+            _copy_nanos += System.nanoTime() - start;
         }
+
+        /**
+         * Clears the codec frame once before the first direct write: black luma
+         * (or zero gray) for the padding, and neutral chroma, which no later
+         * frame touches again.
+         */
+        private void prepare_direct() {
+            if (direct_ready)
+                return;
+            if (yuv_data == null) {
+                yuv_data = picture_yuv.data(0);
+                yuv_data16 = new ShortPointer(yuv_data);
+                yuv_linesize = picture_yuv.linesize(0);
+            }
+            int height = pCtx.height();
+            if (pCtx.pix_fmt() == AV_PIX_FMT_YUV444P) {
+                Pointer.memset(yuv_data, GRAY_TO_LUMA[0], (long) yuv_linesize * height);
+                Pointer.memset(picture_yuv.data(1), 128, (long) picture_yuv.linesize(1) * height);
+                Pointer.memset(picture_yuv.data(2), 128, (long) picture_yuv.linesize(2) * height);
+            } else {
+                Pointer.memset(yuv_data, 0, (long) yuv_linesize * height);
+            }
+            direct_ready = true;
+        }
+
+        /**
+         * Converts the raw input frame into the codec's pixel format, using
+         * the converter's slice threads.
+         */
+        void convert() {
+            // setPlane() already wrote straight into the codec frame
+            if (direct)
+                return;
+            // the conversion overwrites the planes prepare_direct() filled
+            direct_ready = false;
+            long start = System.nanoTime();
+            // convert from RGB24 to YUV
+            sws_scale(frames.sws,              // sws context
+                    picture_rgb.data(),        // src slice
+                    picture_rgb.linesize(),    // src stride
+                    0,                      // src slice origin y
+                    pCtx.height(),      // src slice height
+                    picture_yuv.data(),        // dst
+                    picture_yuv.linesize());  // dst stride
+            _convert_nanos += System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * Flushes the encoder, writes the trailer and frees every native
+     * resource. The packet index, output size and a memory buffer (see
+     * free_buffer()) stay available. Calling close() again does nothing.
+     */
+    @Override
+    public void close() {
+        if (_closed)
+            return;
+        _closed = true;
+        if (_header_written) {
+            flush();
+            mux(null); // flush
+            long start = System.nanoTime();
+            long written = _write_nanos;
+            int ret = av_write_trailer(container);
+            _mux_nanos += System.nanoTime() - start - (_write_nanos - written);
+            if (ret < 0) {
+                if (!_failed)
+                    IJ.log("Error writing stream trailer: " + error_string(ret));
+                _failed = true;
+            }
+        }
+        if (_packet != null) {
+            av_packet_free(_packet);
+            _packet = null;
+        }
+        free_options();
+        if (container != null) {
+            AVIOContext pb = container.pb();
+            if (pb != null && !pb.isNull()) {
+                if (_output != null) {
+                    avio_flush(pb);
+                    av_free(pb.buffer());
+                    avio_context_free(pb);
+                } else if (use_buffer)
+                    _buffer_size = avio_close_dyn_buf(pb, _buffer);
+                else
+                    avio_close(pb);
+                container.pb(null);
+            }
+            STREAMS.remove(container.address());
+            // also frees video_st
+            avformat_free_context(container);
+            container = null;
+            video_st = null;
+        }
+        if (pCtx != null) {
+            avcodec_free_context(pCtx);
+            pCtx = null;
+        }
+        if (_slot != null) {
+            FramePool.release(_slot.frames);
+            _slot = null;
+        }
+        for (Slot slot : _extra_slots)
+            FramePool.release(slot.frames);
+        _extra_slots.clear();
+    }
+
+    /**
+     * Number of bytes written to the Output, including the container
+     * trailer once close() has been called.
+     */
+    long output_size() {
+        return _output_size;
+    }
+
+    private int write_packet(BytePointer buf, int buf_size) {
+        if (_output_bytes == null || _output_bytes.length < buf_size)
+            _output_bytes = new byte[buf_size];
+        buf.get(_output_bytes, 0, buf_size);
+        long start = System.nanoTime();
+        try {
+            _output.write(_output_bytes, buf_size, _output_position);
+        } catch (RuntimeException e) {
+            if (_output_error == null) {
+                _output_error = e;
+                IJ.log("Error writing encoded stream: " + e.getMessage());
+            }
+            _failed = true;
+            return -1;
+        } finally {
+            _write_nanos += System.nanoTime() - start;
+        }
+        _output_position += buf_size;
+        _output_size = Math.max(_output_size, _output_position);
+        return buf_size;
     }
 
+    private long seek(long offset, int whence) {
+        switch (whence & ~AVSEEK_FORCE) {
+            case AVSEEK_SIZE:
+                return _output_size;
+            case 0: // SEEK_SET
+                _output_position = offset;
+                break;
+            case 1: // SEEK_CUR
+                _output_position += offset;
+                break;
+            case 2: // SEEK_END
+                _output_position = _output_size + offset;
+                break;
+            default:
+                return -1;
+        }
+        return _output_position;
+    }
+
+    // JavaCPP only allows a handful of live callback instances, so a single
+    // pair is shared and dispatches on the opaque format context.
+    private static final Map<Long, FFMpegEncoder> STREAMS = new ConcurrentHashMap<>();
+
+    private static final Write_packet_Pointer_BytePointer_int WRITE_PACKET = new Write_packet_Pointer_BytePointer_int() {
+        @Override
+        public int call(Pointer opaque, BytePointer buf, int buf_size) {
+            FFMpegEncoder encoder = STREAMS.get(opaque.address());
+            return encoder == null ? -1 : encoder.write_packet(buf, buf_size);
+        }
+    };
+
+    private static final Seek_Pointer_long_int SEEK = new Seek_Pointer_long_int() {
+        @Override
+        public long call(Pointer opaque, long offset, int whence) {
+            FFMpegEncoder encoder = STREAMS.get(opaque.address());
+            return encoder == null ? -1 : encoder.seek(offset, whence);
+        }
+    };
+
     int buffer_size() {
         return _buffer_size;
     }
@@ -289,76 +827,202 @@ public class FFMpegEncoder {
         }
     }
 
+    /**
+     * Sends one frame to the encoder and writes every packet it has ready.
+     * With lookahead and frame threads a single frame may yield zero or
+     * several packets; the rest come out of later calls or flush().
+     */
     void encode(AVFrame picture) {
-        // av_packet_alloc replaces deprecated av_init_packet (removed in FFmpeg 5.0)
-        AVPacket packet = av_packet_alloc();
-        if (packet == null) {
-            IJ.log("Error allocating package");
+        if (picture == null) {
+            flush();
             return;
         }
 
-        if (pCtx.codec_id() == AV_CODEC_ID_HEVC && picture != null) {
-            picture.pts(_frame_count);
-            _frame_count++;
+        picture.pts(_frame_count);
+        _frame_count++;
+
+        long start = System.nanoTime();
+        int ret = avcodec_send_frame(pCtx, picture);
+        _encode_nanos += System.nanoTime() - start;
+        if (ret < 0) {
+            IJ.log("Error sending frame to encoder: " + error_string(ret));
+            return;
         }
+        receive_packets();
+    }
 
-        int ret = 0;
+    /**
+     * Signals the end of the stream and writes all packets still buffered
+     * in the encoder. Further frames cannot be encoded afterwards.
+     */
+    void flush() {
+        if (_flushed)
+            return;
+        _flushed = true;
+        int ret = avcodec_send_frame(pCtx, (AVFrame) null);
+        if (ret < 0) {
+            IJ.log("Error flushing encoder: " + error_string(ret));
+            return;
+        }
+        receive_packets();
+    }
 
-        if (picture != null) {
-            ret = avcodec_send_frame(pCtx, picture);
+    private void receive_packets() {
+        // av_packet_alloc replaces deprecated av_init_packet (removed in FFmpeg 5.0)
+        if (_packet == null && (_packet = av_packet_alloc()) == null) {
+            IJ.log("Error allocating package");
+            return;
+        }
+        AVPacket packet = _packet;
+        while (true) {
+            long start = System.nanoTime();
+            int ret = avcodec_receive_packet(pCtx, packet);
+            _encode_nanos += System.nanoTime() - start;
+            if (ret == AVERROR_EAGAIN() || ret == AVERROR_EOF())
+                return;
             if (ret < 0) {
-                BytePointer ep = new BytePointer(AV_ERROR_MAX_STRING_SIZE);
-                av_make_error_string(ep, AV_ERROR_MAX_STRING_SIZE, ret);
-                av_packet_unref(packet);
+                IJ.log("Error receiving packet from encoder: " + error_string(ret));
                 return;
             }
-        } else {
-            ret = avcodec_send_frame(pCtx, (AVFrame) null);
+
+            if (packet.pts() == AV_NOPTS_VALUE && (pCtx.codec().capabilities() & AV_CODEC_CAP_DELAY) == 0)
+                packet.pts(_encoded_frames);
+            // pts is still in codec time base here, i.e. the frame (slice) number
+            record_packet(packet.pts(), (packet.flags() & AV_PKT_FLAG_KEY) != 0);
+
+            packet.stream_index(video_st.index());
+            av_packet_rescale_ts(packet, pCtx.time_base(), video_st.time_base());
+            _encoded_frames++;
+
+            mux(packet);
+
+            av_packet_unref(packet);
         }
+    }
 
-        ret = avcodec_receive_packet(pCtx, packet);
+    /** Writes a packet (or flushes with null) and accounts the time not spent in the Output. */
+    private void mux(AVPacket packet) {
+        long start = System.nanoTime();
+        long written = _write_nanos;
+        int ret = av_write_frame(container, packet);
+        _mux_nanos += System.nanoTime() - start - (_write_nanos - written);
         if (ret < 0) {
-            BytePointer ep = new BytePointer(AV_ERROR_MAX_STRING_SIZE);
-            av_make_error_string(ep, AV_ERROR_MAX_STRING_SIZE, ret);
-            av_packet_unref(packet);
-            return;
+            if (!_failed)
+                IJ.log("Error writing packet: " + error_string(ret));
+            _failed = true;
         }
+    }
 
-        if (!packet.isNull()) {
-            if (pCtx.codec_id() == AV_CODEC_ID_HEVC) {
-                if (packet.pts() == AV_NOPTS_VALUE && (pCtx.codec().capabilities() & AV_CODEC_CAP_DELAY) == 0)
-                    packet.pts(_encoded_frames);
+    private void record_packet(long pts, boolean key) {
+        if (_index_count == _index.length)
+            _index = Arrays.copyOf(_index, _index.length * 2);
+        _index[_index_count++] = new long[]{pts, key ? 1 : 0};
+    }
 
-                packet.stream_index(video_st.index());
-                av_packet_rescale_ts(packet, pCtx.time_base(), video_st.time_base());
-            }
-            _encoded_frames++;
+    /**
+     * One row per packet encoded, in decode order: frame number (pts) and
+     * 1 for keyframes. It only maps a slice to the keyframe preceding it;
+     * the reader seeks there through the container's own sample table, as
+     * byte offsets taken before the muxer rewrites and buffers packets
+     * would not match the stored stream.
+     */
+    long[][] packet_index() {
+        return Arrays.copyOf(_index, _index_count);
+    }
 
-            int result = av_write_frame(container, packet);
+    private static String error_string(int err) {
+        BytePointer ep = new BytePointer(AV_ERROR_MAX_STRING_SIZE);
+        av_make_error_string(ep, AV_ERROR_MAX_STRING_SIZE, err);
+        String message = ep.getString();
+        ep.close();
+        return message + ":" + err;
+    }
 
-            av_packet_unref(packet);
-        }
+    // Stage times in nanoseconds, for WriteMetrics. Each is updated by one
+    // thread at a time; read them after close().
+
+    /** Copying planes into frames (setPlane). */
+    long copy_nanos() {
+        return _copy_nanos;
+    }
+
+    /** sws_scale conversion. */
+    long convert_nanos() {
+        return _convert_nanos;
+    }
+
+    /** Sending frames to and receiving packets from the codec. */
+    long encode_nanos() {
+        return _encode_nanos;
+    }
+
+    /** Muxing packets and the trailer, excluding the Output writes. */
+    long mux_nanos() {
+        return _mux_nanos;
+    }
+
+    /** Writing to the Output. */
+    long write_nanos() {
+        return _write_nanos;
+    }
+
+    /** Native frame and IO buffer bytes held while open. */
+    long native_bytes() {
+        return _native_bytes;
     }
 
     int encoded_frames() {
         return _encoded_frames;
     }
 
+    /**
+     * Whether part of the stream could not be written: a packet or the
+     * trailer failed to mux, or the Output threw. The stream is then
+     * incomplete. Final after close().
+     */
+    boolean failed() {
+        return _failed;
+    }
+
+    /** The first exception thrown by the Output, or null. */
+    RuntimeException output_error() {
+        return _output_error;
+    }
+
+    /** Whether construction succeeded and close() has not been called. */
     boolean isReady() {
-        return picture_rgb != null;
+        return _header_written && !_closed;
     }
 
     private AVFormatContext container;
     private AVCodecContext pCtx;
     private AVIOContext ioc;
     private AVStream video_st;
-    private AVFrame picture_yuv;
-    private AVFrame picture_rgb;
-    private SwsContext Sctx;
+    private Slot _slot;
+    private final List<Slot> _extra_slots = new ArrayList<>();
+    private AVDictionary _options;
+    private boolean _header_written;
+    private boolean _closed;
+    private boolean _failed;
+    private RuntimeException _output_error;
     private boolean use_buffer;
     private int _buffer_size;
     private BytePointer _buffer;
     private int _frame_count;
     private int _encoded_frames;
+    private AVPacket _packet;
+    private long[][] _index = new long[64][];
+    private int _index_count;
+    private boolean _flushed;
     private int _raw_format;
+    private Output _output;
+    private byte[] _output_bytes;
+    private long _output_position;
+    private long _output_size;
+    private long _copy_nanos;
+    private long _convert_nanos;
+    private long _encode_nanos;
+    private long _mux_nanos;
+    private long _write_nanos;
+    private long _native_bytes;
 };
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2015 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+
+package org.janelia.it.fiji.plugins.h5j;
+
+import ch.systemsx.cisd.hdf5.IHDF5Reader;
+
+/**
+ * Maps the finite range of a 32-bit float channel linearly onto the codes
+ * the encoder stores, 0..4095 for x265 or 0..65535 for FFV1:
+ * code = round((value - offset) * scale), inverted by
+ * value = code / scale + offset. The mapping is recorded on the channel
+ * dataset as float_offset and float_scale; readers that know them return
+ * float slices.
+ */
+final class FloatRange {
+
+    static final String OFFSET_ATTRIBUTE = "float_offset";
+    static final String SCALE_ATTRIBUTE = "float_scale";
+
+    final float offset;
+    final float scale;
+    final int maxCode;
+
+    FloatRange(float offset, float scale, int maxCode) {
+        this.offset = offset;
+        this.scale = scale;
+        this.maxCode = maxCode;
+    }
+
+    /**
+     * Reads every slice for its finite minimum and maximum and returns the
+     * mapping of that range onto 0..maxCode. sliceRead runs after each
+     * slice; it may throw, e.g. a CancellationException, to stop the scan.
+     */
+    static FloatRange measure(SliceReader slices, int maxCode, Runnable sliceRead) throws InterruptedException {
+        float[] minMax = {Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY};
+        for (int i = 0; i < slices.size(); i++) {
+            PixelKernels.minMax((float[]) slices.next(), minMax);
+            sliceRead.run();
+        }
+        return of(minMax[0], minMax[1], maxCode);
+    }
+
+    static FloatRange of(float min, float max, int maxCode) {
+        if (!(min <= max))
+            return new FloatRange(0f, 1f, maxCode); // no finite values
+        if (max == min)
+            return new FloatRange(min, 1f, maxCode);
+        return new FloatRange(min, (float) (maxCode / ((double) max - min)), maxCode);
+    }
+
+    /** Codes of a float slice. */
+    short[] quantize(Object pixels) {
+        return PixelKernels.quantize((float[]) pixels, offset, scale, maxCode);
+    }
+
+    /** Float values of decoded codes. */
+    float[] dequantize(short[] codes) {
+        return PixelKernels.dequantize(codes, offset, scale);
+    }
+
+    void writeAttributes(AttributeBatch attributes, String path) {
+        attributes.set(path, OFFSET_ATTRIBUTE, offset);
+        attributes.set(path, SCALE_ATTRIBUTE, scale);
+    }
+
+    /** The mapping recorded on path, or null for channels that were not float. */
+    static FloatRange read(IHDF5Reader reader, String path) {
+        if (!reader.object().hasAttribute(path, SCALE_ATTRIBUTE))
+            return null;
+        return new FloatRange((float) reader.float64().getAttr(path, OFFSET_ATTRIBUTE),
+                (float) reader.float64().getAttr(path, SCALE_ATTRIBUTE), 0);
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright 2015 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+
+package org.janelia.it.fiji.plugins.h5j;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bytedeco.ffmpeg.avutil.AVFrame;
+import org.bytedeco.ffmpeg.swscale.SwsContext;
+import org.bytedeco.javacpp.DoublePointer;
+
+import static org.bytedeco.ffmpeg.global.avutil.av_frame_alloc;
+import static org.bytedeco.ffmpeg.global.avutil.av_frame_free;
+import static org.bytedeco.ffmpeg.global.avutil.av_freep;
+import static org.bytedeco.ffmpeg.global.avutil.av_image_alloc;
+import static org.bytedeco.ffmpeg.global.avutil.av_image_get_buffer_size;
+import static org.bytedeco.ffmpeg.global.avutil.av_opt_set_int;
+import static org.bytedeco.ffmpeg.global.swscale.SWS_POINT;
+import static org.bytedeco.ffmpeg.global.swscale.sws_alloc_context;
+import static org.bytedeco.ffmpeg.global.swscale.sws_freeContext;
+import static org.bytedeco.ffmpeg.global.swscale.sws_getContext;
+import static org.bytedeco.ffmpeg.global.swscale.sws_init_context;
+
+/**
+ * Native frame buffers and scaling contexts shared by all encoders in the
+ * JVM. Each channel (or tile) of each file needs a codec frame, a raw input
+ * frame and a SwsContext of the same shape; an encoder borrows a set on
+ * construction and returns it on close, so writing many same-shaped stacks
+ * allocates them only once per concurrently open encoder. Idle sets of all
+ * shapes together are kept up to MAX_IDLE_BYTES; beyond that the least
+ * recently released are freed, so a batch of differently sized stacks does
+ * not keep the frames of every shape it has seen.
+ */
+final class FramePool {
+
+    /** Frame bytes of all idle sets kept; the least recently released beyond are freed. */
+    static final long MAX_IDLE_BYTES = 512L << 20;
+
+    /** Slice threads of each SwsContext. */
+    private static final int SWS_THREADS = Math.min(4, Runtime.getRuntime().availableProcessors());
+
+    /** Idle sets, most recently released first; guarded by itself. */
+    private static final Deque<Frames> IDLE = new ArrayDeque<>();
+    private static long idleBytes;
+
+    /** Frame bytes currently lent to encoders. */
+    private static final AtomicLong IN_USE = new AtomicLong();
+
+    /** Open peak trackers, each raised to IN_USE whenever that grows. */
+    private static final List<Peak> PEAKS = new CopyOnWriteArrayList<>();
+
+    /**
+     * The most frame bytes lent to encoders in the process at once while
+     * the tracker is open; see track_peak(). Trackers of concurrent writes
+     * see each other's frames, but never reset each other.
+     */
+    static final class Peak implements AutoCloseable {
+        private final AtomicLong bytes = new AtomicLong(IN_USE.get());
+
+        long bytes() {
+            return bytes.get();
+        }
+
+        @Override
+        public void close() {
+            PEAKS.remove(this);
+        }
+    }
+
+    /** The frames of one shape: codec frame, raw input frame and their converter. */
+    static final class Frames {
+        final String key;
+        final AVFrame codec;
+        final AVFrame raw;
+        final SwsContext sws;
+        /** Size of both frame buffers. */
+        final long bytes;
+
+        private Frames(String key, AVFrame codec, AVFrame raw, SwsContext sws, long bytes) {
+            this.key = key;
+            this.codec = codec;
+            this.raw = raw;
+            this.sws = sws;
+            this.bytes = bytes;
+        }
+    }
+
+    private FramePool() {
+    }
+
+    private static String key(int width, int height, int codec_format, int raw_format) {
+        return width + "x" + height + ":" + codec_format + ":" + raw_format;
+    }
+
+    /**
+     * An idle set of the given shape, or a newly allocated one. Frame
+     * contents are undefined. Returns null if allocation fails.
+     */
+    static Frames acquire(int width, int height, int codec_format, int raw_format) {
+        String key = key(width, height, codec_format, raw_format);
+        Frames frames = null;
+        synchronized (IDLE) {
+            for (Iterator<Frames> it = IDLE.iterator(); it.hasNext(); ) {
+                Frames idle = it.next();
+                if (idle.key.equals(key)) {
+                    it.remove();
+                    idleBytes -= idle.bytes;
+                    frames = idle;
+                    break;
+                }
+            }
+        }
+        if (frames == null)
+            frames = allocate(key, width, height, codec_format, raw_format);
+        if (frames != null) {
+            long in_use = IN_USE.addAndGet(frames.bytes);
+            for (Peak peak : PEAKS)
+                peak.bytes.accumulateAndGet(in_use, Math::max);
+        }
+        return frames;
+    }
+
+    /** Returns frames to the pool; they must no longer be used by the caller. */
+    static void release(Frames frames) {
+        IN_USE.addAndGet(-frames.bytes);
+        Deque<Frames> evicted = new ArrayDeque<>();
+        synchronized (IDLE) {
+            IDLE.addFirst(frames);
+            idleBytes += frames.bytes;
+            while (idleBytes > MAX_IDLE_BYTES) {
+                Frames oldest = IDLE.pollLast();
+                idleBytes -= oldest.bytes;
+                evicted.add(oldest);
+            }
+        }
+        for (Frames oldest : evicted)
+            free(oldest);
+    }
+
+    /** Frame bytes currently held by encoders in this process. */
+    static long in_use_bytes() {
+        return IN_USE.get();
+    }
+
+    /** Starts tracking the peak frame bytes, e.g. for the duration of one write. */
+    static Peak track_peak() {
+        Peak peak = new Peak();
+        PEAKS.add(peak);
+        return peak;
+    }
+
+    /** Frees every idle set, e.g. at the end of a batch. */
+    static void clear() {
+        Deque<Frames> evicted;
+        synchronized (IDLE) {
+            evicted = new ArrayDeque<>(IDLE);
+            IDLE.clear();
+            idleBytes = 0;
+        }
+        for (Frames frames : evicted)
+            free(frames);
+    }
+
+    private static Frames allocate(String key, int width, int height, int codec_format, int raw_format) {
+        AVFrame codec = alloc_frame(width, height, codec_format);
+        AVFrame raw = codec == null ? null : alloc_frame(width, height, raw_format);
+        SwsContext sws = raw == null ? null : sws_context(width, height, raw_format, codec_format);
+        if (sws == null) {
+            free_frame(codec);
+            free_frame(raw);
+            return null;
+        }
+        long bytes = (long) av_image_get_buffer_size(codec_format, width, height, 1)
+                + av_image_get_buffer_size(raw_format, width, height, 1);
+        return new Frames(key, codec, raw, sws, bytes);
+    }
+
+    /**
+     * A converter between the two formats with SWS_THREADS slice threads;
+     * the sizes match, so no interpolation is needed.
+     */
+    private static SwsContext sws_context(int width, int height, int src_format, int dst_format) {
+        SwsContext sws = sws_alloc_context();
+        if (sws != null) {
+            av_opt_set_int(sws, "srcw", width, 0);
+            av_opt_set_int(sws, "srch", height, 0);
+            av_opt_set_int(sws, "src_format", src_format, 0);
+            av_opt_set_int(sws, "dstw", width, 0);
+            av_opt_set_int(sws, "dsth", height, 0);
+            av_opt_set_int(sws, "dst_format", dst_format, 0);
+            av_opt_set_int(sws, "sws_flags", SWS_POINT, 0);
+            av_opt_set_int(sws, "threads", SWS_THREADS, 0);
+            if (sws_init_context(sws, null, null) >= 0)
+                return sws;
+            sws_freeContext(sws);
+        }
+        // single threaded fallback
+        return sws_getContext(width, height, src_format, width, height, dst_format,
+                SWS_POINT, null, null, (DoublePointer) null);
+    }
+
+    private static AVFrame alloc_frame(int width, int height, int format) {
+        AVFrame frame = av_frame_alloc();
+        if (frame == null)
+            return null;
+        /* the image can be allocated by any means and av_image_alloc() is
+         * just the most convenient way if av_malloc() is to be used */
+        if (av_image_alloc(frame.data(), frame.linesize(), width, height, format, 1) < 0) {
+            av_frame_free(frame);
+            return null;
+        }
+        frame.format(format);
+        frame.width(width);
+        frame.height(height);
+        return frame;
+    }
+
+    private static void free(Frames frames) {
+        sws_freeContext(frames.sws);
+        free_frame(frames.codec);
+        free_frame(frames.raw);
+    }
+
+    private static void free_frame(AVFrame frame) {
+        if (frame == null)
+            return;
+        // av_image_alloc() returns one buffer for all planes, owned by data[0]
+        av_freep(frame.data());
+        av_frame_free(frame);
+    }
+}
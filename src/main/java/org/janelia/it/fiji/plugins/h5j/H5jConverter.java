@@ -0,0 +1,353 @@
+/*
+ * Copyright 2015 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+
+package org.janelia.it.fiji.plugins.h5j;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import ij.IJ;
+import ij.ImagePlus;
+
+/**
+ * Headless batch conversion of image stacks (typically TIFF) to H5J.
+ *
+ * <pre>
+ * java -cp "H5J_Writer_Plugin.jar:deps/*" org.janelia.it.fiji.plugins.h5j.H5jConverter
+ *     [-j workers] [-c channelThreads]
+ *     [-m codec] [-p preset] [-q crf | -Q psnr] [-B bitsPerVoxel]
+ *     [-t frameThreads] [-T tileSize] [-M]
+ *     [-C chunkSize] [-S stripeSize] [-L pyramidLevels] [-s index/count]
+ *     input... output
+ * </pre>
+ *
+ * Each input is a file, a directory (all .tif/.tiff files in it) or a glob
+ * in its last path component, such as {@code /data/stack_*.tif}. The output
+ * is a directory, or a single .h5j file when there is exactly one input.
+ * With -Q or -B each channel's CRF is picked from trial encodes to reach
+ * that PSNR (dB) or stay within that many encoded bits per voxel.
+ * With -M the per-stage timings of each file are written next to it as
+ * output.h5j.metrics.json.
+ */
+public class H5jConverter {
+
+    /** Outcome of converting one file. */
+    public static class Result {
+        public final File input;
+        public final File output;
+        public final boolean success;
+        public final long inputBytes;
+        public final long outputBytes;
+        public final long nanos;
+
+        Result(File input, File output, boolean success, long inputBytes, long outputBytes, long nanos) {
+            this.input = input;
+            this.output = output;
+            this.success = success;
+            this.inputBytes = inputBytes;
+            this.outputBytes = outputBytes;
+            this.nanos = nanos;
+        }
+
+        /** Uncompressed input megabytes encoded per second. */
+        public double megabytesPerSecond() {
+            return nanos > 0 ? inputBytes / 1e6 / (nanos / 1e9) : 0.0;
+        }
+    }
+
+    private int workers = 1;
+    private int channelThreads = 1;
+    private int tileSize = 0;
+    private boolean metricsJson = false;
+    private int chunkSize = 1 << 20;
+    private int stripeSize = 0;
+    private int pyramidLevels = 0;
+    private int shardIndex = 0;
+    private int shardCount = 1;
+    private EncoderSettings settings = new EncoderSettings();
+
+    public void setWorkers(int workers) {
+        this.workers = Math.max(1, workers);
+    }
+
+    public void setChannelThreads(int channelThreads) {
+        this.channelThreads = Math.max(1, channelThreads);
+    }
+
+    /** See H5j_Writer.setTileSize; 0 writes whole planes. */
+    public void setTileSize(int tileSize) {
+        this.tileSize = tileSize;
+    }
+
+    /** See H5j_Writer.setChunkSize. */
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    /** See H5j_Writer.setStripeSize; 0 leaves chunks unaligned. */
+    public void setStripeSize(int stripeSize) {
+        this.stripeSize = stripeSize;
+    }
+
+    /** See H5j_Writer.setPyramidLevels. */
+    public void setPyramidLevels(int pyramidLevels) {
+        this.pyramidLevels = pyramidLevels;
+    }
+
+    /** See H5j_Writer.setShard; merge the shard files with H5jMerge. */
+    public void setShard(int index, int count) {
+        if (count < 1 || index < 0 || index >= count)
+            throw new IllegalArgumentException("Invalid shard " + index + " of " + count);
+        this.shardIndex = index;
+        this.shardCount = count;
+    }
+
+    /** See H5j_Writer.setMetricsJson. */
+    public void setMetricsJson(boolean metricsJson) {
+        this.metricsJson = metricsJson;
+    }
+
+    public EncoderSettings getSettings() {
+        return settings;
+    }
+
+    /**
+     * Converts a single stack. Never throws; failures are reported in the
+     * returned Result.
+     */
+    public Result convert(File input, File output) {
+        long start = System.nanoTime();
+        boolean success = false;
+        long inputBytes = 0;
+        try {
+            ImagePlus img = IJ.openImage(input.getPath());
+            if (img == null) {
+                IJ.log("Unable to open " + input);
+            } else {
+                int[] dims = img.getDimensions();
+                inputBytes = (long) dims[0] * dims[1] * dims[2] * dims[3] * dims[4]
+                        * ((img.getBitDepth() + 7) / 8);
+                H5j_Writer writer = new H5j_Writer();
+                writer.setChannelThreads(channelThreads);
+                writer.setTileSize(tileSize);
+                writer.setMetricsJson(metricsJson);
+                writer.setChunkSize(chunkSize);
+                writer.setStripeSize(stripeSize);
+                writer.setPyramidLevels(pyramidLevels);
+                writer.setShard(shardIndex, shardCount);
+                writer.setSettings(settings.copy());
+                success = writer.saveStackHDF5(output.getPath(), img);
+                img.close();
+            }
+        } catch (RuntimeException e) {
+            IJ.log("Error converting " + input + ": " + e);
+        }
+        return new Result(input, output, success, inputBytes,
+                output.exists() ? output.length() : 0, System.nanoTime() - start);
+    }
+
+    /**
+     * Converts every input into outputDir on the configured number of
+     * workers. Results are returned in input order.
+     *
+     * @throws IllegalArgumentException if two inputs would be written to the
+     *                                  same output, e.g. a/x.tif and b/x.tif,
+     *                                  before anything is converted
+     */
+    public List<Result> convertAll(List<File> inputs, File outputDir) throws InterruptedException {
+        Map<String, File> outputs = new HashMap<>();
+        for (File input : inputs) {
+            File previous = outputs.put(outputName(input), input);
+            if (previous != null)
+                throw new IllegalArgumentException(previous + " and " + input + " would both be written to "
+                        + new File(outputDir, outputName(input)));
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(workers, Math.max(1, inputs.size())));
+        try {
+            List<Future<Result>> futures = new ArrayList<>();
+            for (File input : inputs) {
+                File output = new File(outputDir, outputName(input));
+                futures.add(executor.submit(() -> convert(input, output)));
+            }
+            List<Result> results = new ArrayList<>();
+            for (Future<Result> future : futures) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException(e.getCause());
+                }
+            }
+            return results;
+        } finally {
+            executor.shutdownNow();
+            // frames still lent to running encoders are not idle and stay
+            FramePool.clear();
+        }
+    }
+
+    static String outputName(File input) {
+        String name = input.getName();
+        int dot = name.lastIndexOf('.');
+        return (dot > 0 ? name.substring(0, dot) : name) + ".h5j";
+    }
+
+    /**
+     * Expands a file, directory or last-component glob into a sorted list of
+     * files.
+     */
+    static List<File> expand(String arg) throws IOException {
+        List<File> files = new ArrayList<>();
+        File file = new File(arg);
+        String pattern;
+        Path dir;
+        if (file.isDirectory()) {
+            dir = file.toPath();
+            pattern = "*.{tif,tiff,TIF,TIFF}";
+        } else if (arg.indexOf('*') >= 0 || arg.indexOf('?') >= 0 || arg.indexOf('[') >= 0) {
+            Path path = Paths.get(arg);
+            dir = path.getParent() != null ? path.getParent() : Paths.get(".");
+            pattern = path.getFileName().toString();
+        } else {
+            files.add(file);
+            return files;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, pattern)) {
+            for (Path path : stream) {
+                if (Files.isRegularFile(path))
+                    files.add(path.toFile());
+            }
+        }
+        Collections.sort(files);
+        return files;
+    }
+
+    static void report(List<Result> results, long wallNanos) {
+        long totalIn = 0;
+        long totalOut = 0;
+        int failed = 0;
+        for (Result r : results) {
+            System.out.println(String.format(Locale.ROOT, "%-8s %s -> %s  %.1f MB -> %.1f MB in %.1f s (%.1f MB/s)",
+                    r.success ? "OK" : "FAILED", r.input, r.output,
+                    r.inputBytes / 1e6, r.outputBytes / 1e6, r.nanos / 1e9, r.megabytesPerSecond()));
+            totalIn += r.inputBytes;
+            totalOut += r.outputBytes;
+            if (!r.success)
+                failed++;
+        }
+        double seconds = wallNanos / 1e9;
+        System.out.println(String.format(Locale.ROOT, "%d files, %d failed: %.1f MB -> %.1f MB in %.1f s (%.1f MB/s)",
+                results.size(), failed, totalIn / 1e6, totalOut / 1e6, seconds,
+                seconds > 0 ? totalIn / 1e6 / seconds : 0.0));
+    }
+
+    private static void usage() {
+        System.err.println("Usage: H5jConverter [-j workers] [-c channelThreads]"
+                + " [-m x265|x265-lossless|ffv1] [-p preset] [-q crf | -Q psnr] [-B bitsPerVoxel]"
+                + " [-t frameThreads] [-T tileSize] [-M]"
+                + " [-C chunkSize] [-S stripeSize] [-L pyramidLevels] [-s index/count] input... output");
+        System.exit(2);
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("java.awt.headless", "true");
+        H5jConverter converter = new H5jConverter();
+        List<String> paths = new ArrayList<>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if ("-j".equals(args[i]) && i + 1 < args.length)
+                    converter.setWorkers(Integer.parseInt(args[++i]));
+                else if ("-c".equals(args[i]) && i + 1 < args.length)
+                    converter.setChannelThreads(Integer.parseInt(args[++i]));
+                else if ("-m".equals(args[i]) && i + 1 < args.length)
+                    converter.getSettings().setCodec(args[++i]);
+                else if ("-p".equals(args[i]) && i + 1 < args.length)
+                    converter.getSettings().setPreset(args[++i]);
+                else if ("-q".equals(args[i]) && i + 1 < args.length)
+                    converter.getSettings().setCrf(Integer.parseInt(args[++i]));
+                else if ("-Q".equals(args[i]) && i + 1 < args.length)
+                    converter.getSettings().setTargetPsnr(Double.parseDouble(args[++i]));
+                else if ("-B".equals(args[i]) && i + 1 < args.length)
+                    converter.getSettings().setTargetBitsPerVoxel(Double.parseDouble(args[++i]));
+                else if ("-t".equals(args[i]) && i + 1 < args.length)
+                    converter.getSettings().setFrameThreads(Integer.parseInt(args[++i]));
+                else if ("-T".equals(args[i]) && i + 1 < args.length)
+                    converter.setTileSize(Integer.parseInt(args[++i]));
+                else if ("-C".equals(args[i]) && i + 1 < args.length)
+                    converter.setChunkSize(Integer.parseInt(args[++i]));
+                else if ("-S".equals(args[i]) && i + 1 < args.length)
+                    converter.setStripeSize(Integer.parseInt(args[++i]));
+                else if ("-L".equals(args[i]) && i + 1 < args.length)
+                    converter.setPyramidLevels(Integer.parseInt(args[++i]));
+                else if ("-s".equals(args[i]) && i + 1 < args.length) {
+                    String[] shard = args[++i].split("/");
+                    if (shard.length != 2)
+                        usage();
+                    converter.setShard(Integer.parseInt(shard[0]), Integer.parseInt(shard[1]));
+                } else if ("-M".equals(args[i]))
+                    converter.setMetricsJson(true);
+                else if (args[i].startsWith("-"))
+                    usage();
+                else
+                    paths.add(args[i]);
+            }
+        } catch (IllegalArgumentException e) {
+            // an unknown codec or preset, or a malformed number
+            System.err.println(e.getMessage());
+            System.exit(2);
+        }
+        if (paths.size() < 2)
+            usage();
+
+        File output = new File(paths.remove(paths.size() - 1));
+        List<File> inputs = new ArrayList<>();
+        for (String path : paths)
+            inputs.addAll(expand(path));
+        if (inputs.isEmpty()) {
+            System.err.println("No input files found");
+            System.exit(1);
+        }
+
+        long start = System.nanoTime();
+        List<Result> results;
+        if (inputs.size() == 1 && !output.isDirectory() && output.getName().endsWith(".h5j")) {
+            results = Collections.singletonList(converter.convert(inputs.get(0), output));
+        } else {
+            if (!output.isDirectory() && !output.mkdirs()) {
+                System.err.println("Unable to create output directory " + output);
+                System.exit(1);
+            }
+            try {
+                results = converter.convertAll(inputs, output);
+            } catch (IllegalArgumentException e) {
+                System.err.println(e.getMessage());
+                System.exit(2);
+                return;
+            }
+        }
+        report(results, System.nanoTime() - start);
+
+        for (Result r : results) {
+            if (!r.success)
+                System.exit(1);
+        }
+        System.exit(0);
+    }
+}
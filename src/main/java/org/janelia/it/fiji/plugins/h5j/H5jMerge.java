@@ -0,0 +1,202 @@
+/*
+ * Copyright 2015 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+
+package org.janelia.it.fiji.plugins.h5j;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import ch.systemsx.cisd.hdf5.HDF5DataTypeInformation;
+import ch.systemsx.cisd.hdf5.HDF5Factory;
+import ch.systemsx.cisd.hdf5.IHDF5Reader;
+import ch.systemsx.cisd.hdf5.IHDF5Writer;
+import ij.IJ;
+
+/**
+ * Combines the shard files of one stack, written with
+ * H5j_Writer.setShard by separate processes, into a single H5J.
+ *
+ * <pre>
+ * java -cp "H5J_Writer_Plugin.jar:deps/*" org.janelia.it.fiji.plugins.h5j.H5jMerge
+ *     [-copy] output.h5j shard...
+ * </pre>
+ *
+ * The groups and their attributes are created in the output, and each
+ * channel dataset (or tiled channel group) and its packet index is added
+ * as an HDF5 external link to the shard holding it, so merging only writes
+ * metadata; the shards must then stay where they are. With -copy the
+ * encoded streams are copied into the output as stored instead, making it
+ * self-contained. Nothing is re-encoded either way.
+ */
+public class H5jMerge {
+
+    private static final String MESSAGE_PREFIX = "H5jMerge: ";
+
+    private boolean copy = false;
+
+    /** Copies the streams into the output instead of linking to the shards. */
+    public void setCopy(boolean copy) {
+        this.copy = copy;
+    }
+
+    /**
+     * Merges shards, all shards of one write, into output. Returns false,
+     * after logging why, if a shard is missing or they do not match.
+     */
+    public boolean merge(File output, List<File> shards) {
+        if (!checkShards(shards))
+            return false;
+        if (output.exists())
+            output.delete();
+        IHDF5Writer writer = HDF5Factory.configure(output)
+                .useSimpleDataSpaceForAttributes()
+                .writer();
+        boolean merged = true;
+        try {
+            for (File shard : shards) {
+                try (IHDF5Reader reader = HDF5Factory.openForReading(shard)) {
+                    if (shard == shards.get(0))
+                        copyAttributes(reader, writer, "/");
+                    merged = mergeGroup(reader, linkTarget(output, shard), writer, "/");
+                }
+                if (!merged)
+                    break;
+            }
+            // Loaders that predate time series open /Channels, as in an unsharded file
+            if (merged && writer.object().exists("/Timepoints"))
+                writer.object().createSoftLink(H5j_Writer.timepointGroup(0), "/Channels");
+            writer.file().flush();
+        } finally {
+            writer.close();
+        }
+        if (merged)
+            IJ.log(MESSAGE_PREFIX + "Merged " + shards.size() + " shards into " + output);
+        return merged;
+    }
+
+    /** Each shard of the write must be given exactly once. */
+    private static boolean checkShards(List<File> shards) {
+        boolean[] seen = new boolean[shards.size()];
+        for (File shard : shards) {
+            try (IHDF5Reader reader = HDF5Factory.openForReading(shard)) {
+                long count = reader.object().hasAttribute("/", "shard_count")
+                        ? reader.int64().getAttr("/", "shard_count") : 1;
+                long index = reader.object().hasAttribute("/", "shard_index")
+                        ? reader.int64().getAttr("/", "shard_index") : 0;
+                if (count != shards.size()) {
+                    IJ.log(MESSAGE_PREFIX + shard + " is one of " + count + " shards, but "
+                            + shards.size() + " were given");
+                    return false;
+                }
+                if (seen[(int) index]) {
+                    IJ.log(MESSAGE_PREFIX + "Shard " + index + " was given twice");
+                    return false;
+                }
+                seen[(int) index] = true;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Adds the members of group path of a shard: subgroups are created
+     * (with their attributes) unless an earlier shard had them, channels
+     * are linked or copied. Soft links are left to merge().
+     */
+    private boolean mergeGroup(IHDF5Reader reader, String target, IHDF5Writer writer, String path) {
+        for (String member : reader.object().getGroupMembers(path)) {
+            String child = path.equals("/") ? "/" + member : path + "/" + member;
+            if (reader.object().isSoftLink(child))
+                continue;
+            if (reader.object().isGroup(child) && !member.startsWith("Channel_")) {
+                if (!writer.object().exists(child)) {
+                    writer.object().createGroup(child);
+                    copyAttributes(reader, writer, child);
+                }
+                if (!mergeGroup(reader, target, writer, child))
+                    return false;
+            } else if (writer.object().exists(child)) {
+                IJ.log(MESSAGE_PREFIX + child + " is in more than one shard");
+                return false;
+            } else if (copy) {
+                reader.object().copy(child, writer, child);
+            } else {
+                writer.object().createExternalLink(target, child, child);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Copies the attributes of path, keeping each one an array or a scalar
+     * as the shard stores it.
+     */
+    private static void copyAttributes(IHDF5Reader reader, IHDF5Writer writer, String path) {
+        for (String name : reader.object().getAttributeNames(path)) {
+            if (name.startsWith("shard_"))
+                continue;
+            HDF5DataTypeInformation info = reader.object().getAttributeInformation(path, name);
+            boolean array = info.isArrayType() || info.getRank() > 0;
+            switch (info.getDataClass()) {
+                case INTEGER:
+                    if (array)
+                        writer.int64().setArrayAttr(path, name, reader.int64().getArrayAttr(path, name));
+                    else
+                        writer.int64().setAttr(path, name, reader.int64().getAttr(path, name));
+                    break;
+                case FLOAT:
+                    if (array)
+                        writer.float64().setArrayAttr(path, name, reader.float64().getArrayAttr(path, name));
+                    else
+                        writer.float64().setAttr(path, name, reader.float64().getAttr(path, name));
+                    break;
+                case STRING:
+                    writer.string().setAttr(path, name, reader.string().getAttr(path, name));
+                    break;
+                default:
+                    IJ.log(MESSAGE_PREFIX + "Skipped attribute " + name + " of " + path);
+            }
+        }
+    }
+
+    /**
+     * The shard's name as the output's external links refer to it: relative
+     * when both are in the same directory, so the set can be moved together.
+     */
+    private static String linkTarget(File output, File shard) {
+        File outputDir = output.getAbsoluteFile().getParentFile();
+        File shardDir = shard.getAbsoluteFile().getParentFile();
+        return outputDir != null && outputDir.equals(shardDir) ? shard.getName() : shard.getAbsolutePath();
+    }
+
+    private static void usage() {
+        System.err.println("Usage: H5jMerge [-copy] output shard...");
+        System.exit(2);
+    }
+
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        H5jMerge merge = new H5jMerge();
+        List<String> paths = new ArrayList<>();
+        for (String arg : args) {
+            if ("-copy".equals(arg))
+                merge.setCopy(true);
+            else if (arg.startsWith("-"))
+                usage();
+            else
+                paths.add(arg);
+        }
+        if (paths.size() < 2)
+            usage();
+        File output = new File(paths.remove(0));
+        List<File> shards = new ArrayList<>();
+        for (String path : paths)
+            shards.add(new File(path));
+        System.exit(merge.merge(output, shards) ? 0 : 1);
+    }
+}
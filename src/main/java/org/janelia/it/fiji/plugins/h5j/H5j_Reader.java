@@ -0,0 +1,631 @@
+/*
+ * Copyright 2015 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+
+package org.janelia.it.fiji.plugins.h5j;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import ch.systemsx.cisd.hdf5.HDF5Factory;
+import ch.systemsx.cisd.hdf5.IHDF5Reader;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.GenericDialog;
+import ij.io.OpenDialog;
+import ij.measure.Calibration;
+import ij.plugin.PlugIn;
+import org.bytedeco.ffmpeg.avcodec.AVCodec;
+import org.bytedeco.ffmpeg.avcodec.AVCodecContext;
+import org.bytedeco.ffmpeg.avcodec.AVPacket;
+import org.bytedeco.ffmpeg.avformat.AVFormatContext;
+import org.bytedeco.ffmpeg.avformat.AVIOContext;
+import org.bytedeco.ffmpeg.avformat.AVStream;
+import org.bytedeco.ffmpeg.avformat.Read_packet_Pointer_BytePointer_int;
+import org.bytedeco.ffmpeg.avformat.Seek_Pointer_long_int;
+import org.bytedeco.ffmpeg.avformat.Write_packet_Pointer_BytePointer_int;
+import org.bytedeco.ffmpeg.avutil.AVDictionary;
+import org.bytedeco.ffmpeg.avutil.AVFrame;
+import org.bytedeco.ffmpeg.avutil.AVRational;
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.javacpp.PointerPointer;
+import org.bytedeco.javacpp.Pointer;
+import org.bytedeco.javacpp.ShortPointer;
+
+import static org.bytedeco.ffmpeg.global.avcodec.av_packet_alloc;
+import static org.bytedeco.ffmpeg.global.avcodec.av_packet_free;
+import static org.bytedeco.ffmpeg.global.avcodec.av_packet_unref;
+import static org.bytedeco.ffmpeg.global.avcodec.avcodec_alloc_context3;
+import static org.bytedeco.ffmpeg.global.avcodec.avcodec_find_decoder;
+import static org.bytedeco.ffmpeg.global.avcodec.avcodec_free_context;
+import static org.bytedeco.ffmpeg.global.avcodec.avcodec_open2;
+import static org.bytedeco.ffmpeg.global.avcodec.avcodec_parameters_to_context;
+import static org.bytedeco.ffmpeg.global.avcodec.avcodec_receive_frame;
+import static org.bytedeco.ffmpeg.global.avcodec.avcodec_send_packet;
+import static org.bytedeco.ffmpeg.global.avformat.AVFMT_FLAG_CUSTOM_IO;
+import static org.bytedeco.ffmpeg.global.avformat.AVSEEK_FLAG_BACKWARD;
+import static org.bytedeco.ffmpeg.global.avformat.AVSEEK_FORCE;
+import static org.bytedeco.ffmpeg.global.avformat.AVSEEK_SIZE;
+import static org.bytedeco.ffmpeg.global.avformat.av_read_frame;
+import static org.bytedeco.ffmpeg.global.avformat.av_seek_frame;
+import static org.bytedeco.ffmpeg.global.avformat.avformat_alloc_context;
+import static org.bytedeco.ffmpeg.global.avformat.avformat_close_input;
+import static org.bytedeco.ffmpeg.global.avformat.avformat_find_stream_info;
+import static org.bytedeco.ffmpeg.global.avformat.avformat_open_input;
+import static org.bytedeco.ffmpeg.global.avformat.avio_alloc_context;
+import static org.bytedeco.ffmpeg.global.avformat.avio_context_free;
+import static org.bytedeco.ffmpeg.global.avutil.AVERROR_EAGAIN;
+import static org.bytedeco.ffmpeg.global.avutil.AVERROR_EOF;
+import static org.bytedeco.ffmpeg.global.avutil.AV_NOPTS_VALUE;
+import static org.bytedeco.ffmpeg.global.avutil.AV_PIX_FMT_GRAY8;
+import static org.bytedeco.ffmpeg.global.avutil.AV_PIX_FMT_YUV444P;
+import static org.bytedeco.ffmpeg.global.avutil.av_frame_alloc;
+import static org.bytedeco.ffmpeg.global.avutil.av_frame_free;
+import static org.bytedeco.ffmpeg.global.avutil.av_free;
+import static org.bytedeco.ffmpeg.global.avutil.av_malloc;
+
+/**
+ * Reads H5J files written by H5j_Writer. A z-range of a channel is decoded
+ * by seeking to the keyframe preceding the first requested slice, found in
+ * the packet index written next to each channel, so that opening a few
+ * slices costs about one GOP rather than the whole stream. Files without an
+ * index are decoded from the start.
+ */
+public class H5j_Reader implements PlugIn, AutoCloseable {
+
+    /** Time base the writer encodes with; one tick per slice. */
+    private static final int FRAME_RATE = 25;
+    private static final int IO_BUFFER_SIZE = 1 << 16;
+
+    private IHDF5Reader reader;
+    private String group;
+    private int timepoint;
+    private int level;
+
+    /** For the plugin; use H5j_Reader(String) from code. */
+    public H5j_Reader() {
+    }
+
+    public H5j_Reader(String fileName) {
+        open(fileName);
+    }
+
+    private void open(String fileName) {
+        reader = HDF5Factory.openForReading(fileName);
+        group = "/Channels";
+    }
+
+    @Override
+    public void run(String arg) {
+        OpenDialog od = new OpenDialog("Open H5J", arg);
+        if (od.getFileName() == null)
+            return;
+        open(od.getPath());
+        try {
+            GenericDialog gd = new GenericDialog("Open H5J");
+            gd.addNumericField("First slice", 1, 0);
+            gd.addNumericField("Last slice", getFrames(), 0);
+            gd.showDialog();
+            if (gd.wasCanceled())
+                return;
+            int first = Math.max(1, (int) gd.getNextNumber());
+            int last = Math.min(getFrames(), (int) gd.getNextNumber());
+            ImagePlus imp = read(first - 1, last);
+            if (imp != null) {
+                imp.setTitle(od.getFileName());
+                imp.show();
+            }
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Selects timepoint t of a time series; by default the first one (or
+     * the only one) is read.
+     */
+    public void setTimepoint(int t) {
+        timepoint = t;
+        selectGroup();
+    }
+
+    /**
+     * Selects pyramid level k, downsampled 2^k times in x, y and z, for a
+     * quick preview; 0, the default, is full resolution. Width, height,
+     * frames and the calibration of read() then refer to that level.
+     */
+    public void setLevel(int k) {
+        if (k < 0 || k > getLevels())
+            throw new IllegalArgumentException("No pyramid level " + k);
+        level = k;
+        selectGroup();
+    }
+
+    /** Number of downsampled levels stored, 0 for files written without a pyramid. */
+    public int getLevels() {
+        return reader.object().hasAttribute("/", "pyramid_levels")
+                ? (int) reader.int64().getAttr("/", "pyramid_levels") : 0;
+    }
+
+    private void selectGroup() {
+        boolean series = reader.object().exists("/Timepoints");
+        if (level > 0)
+            group = H5j_Writer.pyramidGroup(level, timepoint, series);
+        else
+            group = series ? H5j_Writer.timepointGroup(timepoint) : "/Channels";
+    }
+
+    public int getTimepoints() {
+        return reader.object().hasAttribute("/", "timepoints")
+                ? (int) reader.int64().getAttr("/", "timepoints") : 1;
+    }
+
+    public int getWidth() {
+        return (int) reader.int64().getAttr(group, "width");
+    }
+
+    public int getHeight() {
+        return (int) reader.int64().getAttr(group, "height");
+    }
+
+    /** Number of z slices per channel. */
+    public int getFrames() {
+        return (int) reader.int64().getAttr(group, "frames");
+    }
+
+    /** Bits per stored sample, 8 or 16, or 0 for files that do not record it. */
+    public int getBitDepth() {
+        return reader.object().hasAttribute("/", "bit_depth")
+                ? (int) reader.int64().getAttr("/", "bit_depth") : 0;
+    }
+
+    /**
+     * Bit depth of the stack that was saved: 24 for RGB, stored as three
+     * channels per source channel, 32 for float, else getBitDepth().
+     */
+    public int getSourceBitDepth() {
+        return reader.object().hasAttribute("/", "source_bit_depth")
+                ? (int) reader.int64().getAttr("/", "source_bit_depth") : getBitDepth();
+    }
+
+    public int getChannelCount() {
+        int n = 0;
+        for (String member : reader.object().getGroupMembers(group)) {
+            if (member.startsWith("Channel_"))
+                n++;
+        }
+        return n;
+    }
+
+    /**
+     * Reads slices [zStart, zEnd) of every channel as a hyperstack, or
+     * returns null if a channel could not be decoded. Stacks saved as RGB
+     * come back as RGB, with each stored channel triple packed again.
+     */
+    public ImagePlus read(int zStart, int zEnd) {
+        int nCh = getChannelCount();
+        List<ImageStack> channels = new ArrayList<>();
+        for (int c = 0; c < nCh; c++) {
+            ImageStack channel = readChannel(c, zStart, zEnd);
+            if (channel == null)
+                return null;
+            channels.add(channel);
+        }
+        if (getSourceBitDepth() == 24 && nCh % 3 == 0) {
+            List<ImageStack> packed = new ArrayList<>();
+            for (int c = 0; c < nCh; c += 3)
+                packed.add(packRgb(channels.get(c), channels.get(c + 1), channels.get(c + 2)));
+            channels = packed;
+            nCh = packed.size();
+        }
+        ImageStack stack = new ImageStack(getWidth(), getHeight());
+        for (int z = 0; z < zEnd - zStart; z++) {
+            for (ImageStack channel : channels)
+                stack.addSlice(null, channel.getPixels(z + 1));
+        }
+        ImagePlus imp = new ImagePlus("H5J", stack);
+        imp.setDimensions(nCh, zEnd - zStart, 1);
+        if (nCh > 1)
+            imp.setOpenAsHyperStack(true);
+        if (reader.object().hasAttribute("/", "voxel_size")) {
+            double[] vx_size = reader.float64().getArrayAttr("/", "voxel_size");
+            int factor = 1 << level;
+            Calibration cal = imp.getCalibration();
+            cal.pixelWidth = vx_size[0] * factor;
+            cal.pixelHeight = vx_size[1] * factor;
+            cal.pixelDepth = vx_size[2] * factor;
+            if (reader.object().hasAttribute("/", "unit"))
+                cal.setUnit(reader.string().getAttr("/", "unit"));
+        }
+        return imp;
+    }
+
+    /**
+     * Decodes slices [zStart, zEnd) of one channel. 8-bit channels come
+     * back as byte slices, 16-bit ones as short slices with the writer's
+     * intensity mapping undone, float ones as float slices. Returns null if
+     * the stream cannot be decoded.
+     */
+    public ImageStack readChannel(int channel, int zStart, int zEnd) {
+        return readRegion(channel, 0, 0, getWidth(), getHeight(), zStart, zEnd);
+    }
+
+    /**
+     * Decodes the width x height region at (x, y) of slices [zStart, zEnd)
+     * of one channel. For a tiled channel only the tiles overlapping the
+     * region are decoded. Slices the writer recorded as constant come back
+     * with their exact value, and are not decoded at all when every slice
+     * requested is constant.
+     */
+    public ImageStack readRegion(int channel, int x, int y, int width, int height, int zStart, int zEnd) {
+        String path = group + "/Channel_" + channel;
+        Object[] slices = new Object[zEnd - zStart];
+        int[] constant = ConstantSlices.read(reader, path, getFrames());
+        boolean decode = constant == null || getBitDepth() == 0;
+        for (int z = zStart; z < zEnd && !decode; z++)
+            decode = constant[z] < 0;
+        if (decode && !reader.object().isGroup(path)) {
+            ImageStack stack = decodeDataset(path, getWidth(), getHeight(), zStart, zEnd);
+            if (stack == null)
+                return null;
+            copyRegion(stack, 0, 0, getWidth(), getHeight(), slices, x, y, width, height);
+        } else if (decode) {
+            int tileWidth = (int) reader.int64().getAttr(path, "tile_width");
+            int tileHeight = (int) reader.int64().getAttr(path, "tile_height");
+            int columns = (int) reader.int64().getAttr(path, "tiles_x");
+            int rows = (int) reader.int64().getAttr(path, "tiles_y");
+            for (int row = y / tileHeight; row < rows && row * tileHeight < y + height; row++) {
+                for (int column = x / tileWidth; column < columns && column * tileWidth < x + width; column++) {
+                    String tile = H5j_Writer.tilePath(path, row, column);
+                    int tx = (int) reader.int64().getAttr(tile, "x");
+                    int ty = (int) reader.int64().getAttr(tile, "y");
+                    int tw = (int) reader.int64().getAttr(tile, "width");
+                    int th = (int) reader.int64().getAttr(tile, "height");
+                    ImageStack stack = decodeDataset(tile, tw, th, zStart, zEnd);
+                    if (stack == null)
+                        return null;
+                    copyRegion(stack, tx, ty, tw, th, slices, x, y, width, height);
+                }
+            }
+        }
+        ImageStack region = new ImageStack(width, height);
+        IntensityRange range = IntensityRange.read(reader, path);
+        FloatRange floatRange = FloatRange.read(reader, path);
+        for (int i = 0; i < slices.length; i++) {
+            Object pixels = slices[i];
+            if (constant != null && constant[zStart + i] >= 0) {
+                boolean shorts = pixels != null ? pixels instanceof short[] : getBitDepth() > 8;
+                pixels = constantPlane(constant[zStart + i], width * height, shorts);
+            } else if (pixels instanceof short[]) {
+                range.invert((short[]) pixels);
+            }
+            if (floatRange != null && pixels instanceof short[])
+                pixels = floatRange.dequantize((short[]) pixels);
+            region.addSlice(null, pixels);
+        }
+        return region;
+    }
+
+    private static ImageStack packRgb(ImageStack r, ImageStack g, ImageStack b) {
+        ImageStack rgb = new ImageStack(r.getWidth(), r.getHeight());
+        for (int z = 1; z <= r.getSize(); z++) {
+            byte[] rp = (byte[]) r.getPixels(z);
+            byte[] gp = (byte[]) g.getPixels(z);
+            byte[] bp = (byte[]) b.getPixels(z);
+            int[] px = new int[rp.length];
+            for (int i = 0; i < px.length; i++)
+                px[i] = 0xff000000 | (rp[i] & 0xff) << 16 | (gp[i] & 0xff) << 8 | (bp[i] & 0xff);
+            rgb.addSlice(null, px);
+        }
+        return rgb;
+    }
+
+    private static Object constantPlane(int value, int size, boolean shorts) {
+        if (shorts) {
+            short[] plane = new short[size];
+            Arrays.fill(plane, (short) value);
+            return plane;
+        }
+        byte[] plane = new byte[size];
+        Arrays.fill(plane, (byte) value);
+        return plane;
+    }
+
+    private ImageStack decodeDataset(String path, int width, int height, int zStart, int zEnd) {
+        int keyframe = keyframeBefore(H5j_Writer.indexPath(path), zStart);
+        try (ChannelDecoder decoder = new ChannelDecoder(reader, path)) {
+            if (!decoder.open())
+                return null;
+            return decoder.decode(keyframe, zStart, zEnd, width, height);
+        }
+    }
+
+    /**
+     * Decodes the first frames of a stream held in memory, as encoded by
+     * FFMpegEncoder into its buffer, cropping each to width x height.
+     * Returns null if the stream cannot be decoded.
+     */
+    static ImageStack decodeStream(byte[] stream, int width, int height, int frames) {
+        try (ChannelDecoder decoder = new ChannelDecoder(stream)) {
+            if (!decoder.open())
+                return null;
+            return decoder.decode(0, 0, frames, width, height);
+        }
+    }
+
+    /**
+     * Copies the part of the source slices, whose top left corner is at
+     * (sx, sy) of the plane, that falls into the region into the region's
+     * slices, allocating them on first use.
+     */
+    private static void copyRegion(ImageStack source, int sx, int sy, int sourceWidth, int sourceHeight,
+                                   Object[] slices, int x, int y, int width, int height) {
+        int x0 = Math.max(x, sx);
+        int x1 = Math.min(x + width, sx + sourceWidth);
+        int y0 = Math.max(y, sy);
+        int y1 = Math.min(y + height, sy + sourceHeight);
+        if (x0 >= x1 || y0 >= y1)
+            return;
+        for (int z = 0; z < slices.length; z++) {
+            Object src = source.getPixels(z + 1);
+            if (slices[z] == null)
+                slices[z] = src instanceof short[] ? new short[width * height] : new byte[width * height];
+            for (int row = y0; row < y1; row++)
+                System.arraycopy(src, (row - sy) * sourceWidth + x0 - sx,
+                        slices[z], (row - y) * width + x0 - x, x1 - x0);
+        }
+    }
+
+    /**
+     * Frame number of the last keyframe at or before z, from the packet
+     * index; 0 if the file has no index. The keyframe flag is the last
+     * column, also in indexes that still carry byte offsets and sizes.
+     */
+    int keyframeBefore(String indexPath, int z) {
+        if (!reader.object().exists(indexPath))
+            return 0;
+        long best = 0;
+        for (long[] row : reader.int64().readMatrix(indexPath)) {
+            if (row[row.length - 1] != 0 && row[0] <= z && row[0] > best)
+                best = row[0];
+        }
+        return (int) best;
+    }
+
+    @Override
+    public void close() {
+        if (reader != null) {
+            reader.close();
+            reader = null;
+        }
+    }
+
+    /**
+     * Demuxes and decodes one channel dataset through a custom AVIOContext
+     * that reads the dataset block by block, or a stream held in memory.
+     */
+    private static class ChannelDecoder implements AutoCloseable {
+        private final IHDF5Reader reader;
+        private final String path;
+        private final byte[] data;
+        private final long size;
+        private long position;
+        private AVFormatContext format;
+        private AVIOContext ioc;
+        /** Key of this decoder in STREAMS, the format context's address when opened. */
+        private long address;
+        private AVCodecContext codec;
+        private AVStream stream;
+
+        ChannelDecoder(IHDF5Reader reader, String path) {
+            this.reader = reader;
+            this.path = path;
+            this.data = null;
+            this.size = reader.object().getDataSetInformation(path).getSize();
+        }
+
+        ChannelDecoder(byte[] data) {
+            this.reader = null;
+            this.path = "(memory)";
+            this.data = data;
+            this.size = data.length;
+        }
+
+        boolean open() {
+            format = avformat_alloc_context();
+            address = format.address();
+            STREAMS.put(address, this);
+            BytePointer buffer = new BytePointer(av_malloc(IO_BUFFER_SIZE));
+            ioc = avio_alloc_context(buffer, IO_BUFFER_SIZE, 0, format,
+                    READ_PACKET, (Write_packet_Pointer_BytePointer_int) null, SEEK);
+            format.pb(ioc);
+            format.flags(format.flags() | AVFMT_FLAG_CUSTOM_IO);
+            if (avformat_open_input(format, (String) null, null, (AVDictionary) null) < 0) {
+                // FFmpeg has freed the format context, but not our IO context
+                format = null;
+                IJ.log("Unable to open stream " + path);
+                return false;
+            }
+            if (avformat_find_stream_info(format, (PointerPointer) null) < 0) {
+                IJ.log("Unable to find stream info in " + path);
+                return false;
+            }
+            stream = format.streams(0);
+            AVCodec decoder = avcodec_find_decoder(stream.codecpar().codec_id());
+            if (decoder == null) {
+                IJ.log("No decoder for " + path);
+                return false;
+            }
+            codec = avcodec_alloc_context3(decoder);
+            avcodec_parameters_to_context(codec, stream.codecpar());
+            if (avcodec_open2(codec, decoder, (AVDictionary) null) < 0) {
+                IJ.log("Unable to open decoder for " + path);
+                return false;
+            }
+            return true;
+        }
+
+        ImageStack decode(int keyframe, int zStart, int zEnd, int w, int h) {
+            AVRational tb = stream.time_base();
+            if (keyframe > 0) {
+                long ts = (long) keyframe * tb.den() / ((long) tb.num() * FRAME_RATE);
+                av_seek_frame(format, stream.index(), ts, AVSEEK_FLAG_BACKWARD);
+            }
+            Object[] slices = new Object[zEnd - zStart];
+            int remaining = slices.length;
+            AVPacket packet = av_packet_alloc();
+            AVFrame frame = av_frame_alloc();
+            boolean draining = false;
+            try {
+                while (remaining > 0) {
+                    if (!draining) {
+                        if (av_read_frame(format, packet) < 0) {
+                            avcodec_send_packet(codec, (AVPacket) null);
+                            draining = true;
+                        } else {
+                            if (packet.stream_index() == stream.index())
+                                avcodec_send_packet(codec, packet);
+                            av_packet_unref(packet);
+                        }
+                    }
+                    int ret;
+                    while ((ret = avcodec_receive_frame(codec, frame)) >= 0) {
+                        long ts = frame.best_effort_timestamp();
+                        if (ts == AV_NOPTS_VALUE)
+                            continue;
+                        int z = (int) Math.round((double) ts * tb.num() * FRAME_RATE / tb.den());
+                        if (z >= zStart && z < zEnd && slices[z - zStart] == null) {
+                            slices[z - zStart] = copy(frame, w, h);
+                            remaining--;
+                        }
+                    }
+                    if (ret == AVERROR_EOF() || (draining && ret == AVERROR_EAGAIN()))
+                        break;
+                }
+            } finally {
+                av_frame_free(frame);
+                av_packet_free(packet);
+            }
+            if (remaining > 0) {
+                IJ.log("Stream " + path + " ended before slice " + zEnd);
+                return null;
+            }
+            ImageStack stack = new ImageStack(w, h);
+            for (Object pixels : slices)
+                stack.addSlice(null, pixels);
+            return stack;
+        }
+
+        /**
+         * Crops the padded frame; inverts the writer's gray to luma mapping
+         * for lossy 8-bit data. Lossless 8-bit streams are GRAY8, 16-bit
+         * ones GRAY12 or GRAY16.
+         */
+        private static Object copy(AVFrame frame, int w, int h) {
+            int linesize = frame.linesize(0);
+            if (frame.format() == AV_PIX_FMT_GRAY8) {
+                BytePointer gray = frame.data(0);
+                byte[] pixels = new byte[w * h];
+                for (int y = 0; y < h; y++)
+                    gray.position((long) y * linesize).get(pixels, y * w, w);
+                return pixels;
+            }
+            if (frame.format() == AV_PIX_FMT_YUV444P) {
+                BytePointer luma = frame.data(0);
+                byte[] pixels = new byte[w * h];
+                for (int y = 0; y < h; y++)
+                    luma.position((long) y * linesize).get(pixels, y * w, w);
+                for (int i = 0; i < pixels.length; i++)
+                    pixels[i] = LUMA_TO_GRAY[pixels[i] & 0xff];
+                return pixels;
+            }
+            ShortPointer gray = new ShortPointer(frame.data(0));
+            short[] pixels = new short[w * h];
+            for (int y = 0; y < h; y++)
+                gray.position((long) y * linesize / 2).get(pixels, y * w, w);
+            return pixels;
+        }
+
+        private int read_packet(BytePointer buf, int buf_size) {
+            int n = (int) Math.min(buf_size, size - position);
+            if (n <= 0)
+                return AVERROR_EOF();
+            if (data != null) {
+                buf.put(data, (int) position, n);
+            } else {
+                byte[] block = reader.uint8().readArrayBlockWithOffset(path, n, position);
+                buf.put(block, 0, n);
+            }
+            position += n;
+            return n;
+        }
+
+        private long seek(long offset, int whence) {
+            switch (whence & ~AVSEEK_FORCE) {
+                case AVSEEK_SIZE:
+                    return size;
+                case 0: // SEEK_SET
+                    position = offset;
+                    break;
+                case 1: // SEEK_CUR
+                    position += offset;
+                    break;
+                case 2: // SEEK_END
+                    position = size + offset;
+                    break;
+                default:
+                    return -1;
+            }
+            return position;
+        }
+
+        @Override
+        public void close() {
+            if (codec != null)
+                avcodec_free_context(codec);
+            // closing the input nulls format; a custom IO context is left to us
+            if (format != null)
+                avformat_close_input(format);
+            if (ioc != null) {
+                av_free(ioc.buffer());
+                avio_context_free(ioc);
+            }
+            STREAMS.remove(address);
+        }
+    }
+
+    /** Full-range gray of a limited-range luma value; inverse of the writer's table. */
+    private static final byte[] LUMA_TO_GRAY = new byte[256];
+
+    static {
+        for (int y = 0; y < 256; y++)
+            LUMA_TO_GRAY[y] = (byte) Math.max(0, Math.min(255, Math.round((y - 16) * 255 / 219.0)));
+    }
+
+    // As in FFMpegEncoder, one shared pair of callbacks dispatches on the
+    // opaque format context.
+    private static final Map<Long, ChannelDecoder> STREAMS = new ConcurrentHashMap<>();
+
+    private static final Read_packet_Pointer_BytePointer_int READ_PACKET = new Read_packet_Pointer_BytePointer_int() {
+        @Override
+        public int call(Pointer opaque, BytePointer buf, int buf_size) {
+            ChannelDecoder decoder = STREAMS.get(opaque.address());
+            return decoder == null ? -1 : decoder.read_packet(buf, buf_size);
+        }
+    };
+
+    private static final Seek_Pointer_long_int SEEK = new Seek_Pointer_long_int() {
+        @Override
+        public long call(Pointer opaque, long offset, int whence) {
+            ChannelDecoder decoder = STREAMS.get(opaque.address());
+            return decoder == null ? -1 : decoder.seek(offset, whence);
+        }
+    };
+}
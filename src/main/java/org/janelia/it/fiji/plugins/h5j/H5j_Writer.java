@@ -8,26 +8,45 @@
 package org.janelia.it.fiji.plugins.h5j;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.UnaryOperator;
 
 import ch.systemsx.cisd.hdf5.HDF5Factory;
 import ch.systemsx.cisd.hdf5.IHDF5Writer;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
+import ij.Macro;
+import ij.gui.GenericDialog;
 import ij.io.FileInfo;
 import ij.io.SaveDialog;
 import ij.plugin.filter.PlugInFilter;
 import ij.process.ImageProcessor;
 import org.bytedeco.javacpp.BytePointer;
 
-import static org.bytedeco.ffmpeg.global.avcodec.AV_CODEC_ID_H265;
 import static org.bytedeco.ffmpeg.global.avutil.av_strerror;
 
 /**
- * Fiji plugin for HHMI HDF 5 writer. Consumes H.265-compressed data.
+ * Fiji plugin for HHMI HDF 5 writer. Consumes H.265-compressed data, or
+ * FFV1 for lossless archival writes.
  *
  * @author takashi
  */
@@ -36,9 +55,75 @@ public class H5j_Writer extends ImagePlus implements PlugInFilter {
     private static final String MESSAGE_PREFIX = "HHMI_H5J_Writer: ";
     private static final String EXTENSION = ".h5j";
     public static final String INFO_PROPERTY = "Info";
+    static final String INDEX_GROUP = "/Index";
 
     ImagePlus m_imp;
 
+    /**
+     * Runs saveInBackground calls, two at a time by default; further saves
+     * wait in order. Shared by all writers so that queued saves from the
+     * GUI do not all encode at once.
+     */
+    private static final ThreadPoolExecutor SAVES = new ThreadPoolExecutor(2, 2, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(), r -> {
+        Thread thread = new Thread(r, "H5J save");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /** How long a background save of a virtual stack waits for its lock. */
+    static final long LOCK_WAIT_MILLIS = 10000;
+
+    static {
+        SAVES.allowCoreThreadTimeOut(true);
+    }
+
+    /** Number of channels saveStackHDF5 encodes at the same time. */
+    private int channelThreads = 1;
+
+    /** x265 preset, quality and threading used by both save methods. */
+    private EncoderSettings settings = new EncoderSettings();
+
+    /** Slices read ahead per channel when saving a virtual stack. */
+    private int prefetchSlices = 2;
+
+    /** HDF5 chunk size of the channel datasets, also the encoder IO buffer size. */
+    private int chunkSize = 1 << 20;
+
+    /** Filesystem stripe size chunks are rounded up to a multiple of; 0 leaves them as set. */
+    private int stripeSize = 0;
+
+    /** Percentage of 16-bit samples per channel allowed to clip when fitting them to 12 bits. */
+    private double saturated = 0.0;
+
+    /** Edge length of the XY tiles large planes are split into; 0 encodes whole planes. */
+    private int tileSize = 0;
+
+    /** Number of tiles of one channel encoded at the same time. */
+    private int tileThreads = 4;
+
+    /** Frames in flight between the fill, convert and encode stages of a channel. */
+    private int pipelineDepth = 3;
+
+    /** Downsampled levels written per channel under /Pyramid; 0 writes none. */
+    private int pyramidLevels = 0;
+
+    /** Largest sample spread of a slice encoded as constant; negative scans no slices. */
+    private int constantTolerance = 0;
+
+    /** This writer's shard of the channels, and the number of shards; see setShard. */
+    private int shardIndex = 0;
+    private int shardCount = 1;
+
+    /** Receive the WriteMetrics of each saveStackHDF5 call. */
+    private final List<WriteMetrics.Listener> metricsListeners = new CopyOnWriteArrayList<>();
+
+    /** Whether saveStackHDF5 also writes its metrics to fileName.metrics.json. */
+    private boolean metricsJson = false;
+
+    /** Whether pressing Esc cancels the background saves this writer starts, as from the GUI. */
+    private boolean cancelOnEscape = false;
+
     static void check(int err) {
         if (err < 0) {
             BytePointer e = new BytePointer(512);
@@ -47,19 +132,366 @@ public class H5j_Writer extends ImagePlus implements PlugInFilter {
         }
     }
 
+    /**
+     * Sets how many channels are encoded concurrently. Each channel already
+     * runs x265 with its own frame threads, so this is best kept small.
+     */
+    public void setChannelThreads(int channelThreads) {
+        this.channelThreads = Math.max(1, channelThreads);
+    }
+
+    public int getChannelThreads() {
+        return channelThreads;
+    }
+
+    /**
+     * Sets the chunk size in bytes of the channel datasets. Encoded packets
+     * are streamed into the file, so this also bounds the memory held per
+     * channel for the compressed stream.
+     */
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = Math.max(4096, chunkSize);
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Sets the stripe size in bytes of the filesystem the file is written
+     * to, e.g. the Lustre stripe size. The chunk size is then rounded up to
+     * a multiple of it; the encoders flush one chunk at a time, so each
+     * write fills whole chunks and stripes, and readers fetching a byte
+     * range touch as few stripes as possible. 0, the default, uses the
+     * chunk size as set.
+     */
+    public void setStripeSize(int stripeSize) {
+        this.stripeSize = Math.max(0, stripeSize);
+    }
+
+    public int getStripeSize() {
+        return stripeSize;
+    }
+
+    /** The chunk size rounded up to a multiple of the stripe size. */
+    int alignedChunkSize() {
+        if (stripeSize == 0)
+            return chunkSize;
+        long aligned = ((long) chunkSize + stripeSize - 1) / stripeSize * stripeSize;
+        return (int) Math.min(aligned, Integer.MAX_VALUE / stripeSize * stripeSize);
+    }
+
+    /**
+     * Sets how many slices of each channel are read ahead on a background
+     * thread when saving a virtual stack, so that disk reads overlap with
+     * encoding; 0 reads each slice when it is needed.
+     */
+    public void setPrefetchSlices(int prefetchSlices) {
+        this.prefetchSlices = Math.max(0, prefetchSlices);
+    }
+
+    public int getPrefetchSlices() {
+        return prefetchSlices;
+    }
+
+    /**
+     * Sets the percentage of samples of each 16-bit channel that may clip,
+     * half at each end, when its range is fitted to the 12 bits stored. With
+     * the default of 0 the exact minimum and maximum are kept.
+     */
+    public void setSaturated(double saturated) {
+        this.saturated = Math.max(0.0, Math.min(50.0, saturated));
+    }
+
+    public double getSaturated() {
+        return saturated;
+    }
+
+    /**
+     * Splits planes wider or taller than tileSize into tiles of at most
+     * tileSize x tileSize pixels, each encoded into its own dataset
+     * Channel_N/tile_row_column with its own encoder. Mosaics far larger
+     * than x265 handles well can then be written, and viewers decode only
+     * the tiles they show. 0, the default, writes whole planes.
+     */
+    public void setTileSize(int tileSize) {
+        this.tileSize = tileSize <= 0 ? 0 : nearestPowerOfEight(Math.max(64, tileSize));
+    }
+
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    /**
+     * Sets how many tiles of a channel are encoded concurrently; the pool is
+     * shared by all channels being encoded.
+     */
+    public void setTileThreads(int tileThreads) {
+        this.tileThreads = Math.max(1, tileThreads);
+    }
+
+    public int getTileThreads() {
+        return tileThreads;
+    }
+
+    /**
+     * Sets how many frames of a channel are in flight at once. With 2 or
+     * more, copying the next slice into a frame, converting it and encoding
+     * run on separate threads; 1 runs them one after another. Tiled
+     * channels are already encoded in parallel and always run serially.
+     */
+    public void setPipelineDepth(int pipelineDepth) {
+        this.pipelineDepth = Math.max(1, pipelineDepth);
+    }
+
+    public int getPipelineDepth() {
+        return pipelineDepth;
+    }
+
+    /**
+     * Adds a listener that is told the timings of each channel as it
+     * finishes and of the whole file at the end of every saveStackHDF5,
+     * also when it fails.
+     */
+    public void addMetricsListener(WriteMetrics.Listener listener) {
+        metricsListeners.add(listener);
+    }
+
+    public void removeMetricsListener(WriteMetrics.Listener listener) {
+        metricsListeners.remove(listener);
+    }
+
+    /**
+     * Sets whether saveStackHDF5 writes its WriteMetrics as JSON next to
+     * the output, to fileName + ".metrics.json".
+     */
+    public void setMetricsJson(boolean metricsJson) {
+        this.metricsJson = metricsJson;
+    }
+
+    public boolean isMetricsJson() {
+        return metricsJson;
+    }
+
+    /**
+     * Sets how many downsampled levels (2x, 4x, 8x in x, y and z) of each
+     * channel are written under /Pyramid, for previews that decode a small
+     * stream instead of the full-resolution one. They are computed from the
+     * slices as they are encoded, so the stack is still read once. Levels
+     * with a plane side below Pyramid.MIN_SIZE are skipped.
+     */
+    public void setPyramidLevels(int pyramidLevels) {
+        this.pyramidLevels = Math.max(0, Math.min(Pyramid.MAX_LEVELS, pyramidLevels));
+    }
+
+    public int getPyramidLevels() {
+        return pyramidLevels;
+    }
+
+    /**
+     * Sets how far the samples of a slice may differ for it to be encoded
+     * as a constant slice, filled with the middle of their range without
+     * copying its pixels (see ConstantSlices). The default of 0 only
+     * catches slices with a single value, which are stored exactly;
+     * lossless codecs always use 0. Negative values turn the scan off.
+     */
+    public void setConstantTolerance(int constantTolerance) {
+        this.constantTolerance = constantTolerance;
+    }
+
+    public int getConstantTolerance() {
+        return constantTolerance;
+    }
+
+    /**
+     * Makes saveStackHDF5 write only shard index of count: of the channels
+     * of all timepoints, numbered t * channels + c, those whose number
+     * modulo count is index. Every shard file has the full group layout
+     * and attributes, so shards written by separate processes or nodes can
+     * be combined by H5jMerge without re-encoding. (1 of 1), the default,
+     * writes everything.
+     */
+    public void setShard(int index, int count) {
+        if (count < 1 || index < 0 || index >= count)
+            throw new IllegalArgumentException("Invalid shard " + index + " of " + count);
+        this.shardIndex = index;
+        this.shardCount = count;
+    }
+
+    public int getShardIndex() {
+        return shardIndex;
+    }
+
+    public int getShardCount() {
+        return shardCount;
+    }
+
+    public EncoderSettings getSettings() {
+        return settings;
+    }
+
+    public void setSettings(EncoderSettings settings) {
+        this.settings = settings;
+    }
+
+    /**
+     * Sets how many saveInBackground calls, of all writers, encode at the
+     * same time; the others wait in the order they were started.
+     */
+    public static void setConcurrentSaves(int saves) {
+        int n = Math.max(1, saves);
+        if (n > SAVES.getMaximumPoolSize()) {
+            SAVES.setMaximumPoolSize(n);
+            SAVES.setCorePoolSize(n);
+        } else {
+            SAVES.setCorePoolSize(n);
+            SAVES.setMaximumPoolSize(n);
+        }
+    }
+
+    public static int getConcurrentSaves() {
+        return SAVES.getMaximumPoolSize();
+    }
+
     public int setup(String arg, ImagePlus imp) {
         this.m_imp = imp;
-        return DOES_8G + DOES_16;
+        return DOES_8G + DOES_16 + DOES_32 + DOES_RGB + NO_CHANGES;
     }
 
+    /**
+     * Saves in the background, so Fiji stays usable during long encodes;
+     * press Esc to cancel. Macros save synchronously, so that the file is
+     * complete when the command returns.
+     */
     @Override
     public void run(ImageProcessor ip) {
+        if (!showSettingsDialog())
+            return;
         SaveDialog sd = new SaveDialog("Save as H5J", "", EXTENSION);
         String directory = sd.getDirectory();
         String filename = sd.getFileName();
         if (filename == null)
             return;
-        saveStackHDF5(directory + filename, m_imp);
+        if (Macro.getOptions() != null) {
+            saveStackHDF5(directory + filename, m_imp);
+            return;
+        }
+        IJ.resetEscape();
+        cancelOnEscape = true;
+        saveInBackground(directory + filename, m_imp);
+    }
+
+    /**
+     * Queues saveStackHDF5 on the shared background executor and returns
+     * at once. The save sees the image as it is now: an in-memory stack is
+     * copied first (which needs as much memory again), a virtual stack is
+     * locked until its save ends, so other commands cannot change it. A
+     * virtual stack locked by another command is waited for up to
+     * LOCK_WAIT_MILLIS once the save starts, e.g. for the lock the plugin
+     * runner holds around run(); after that the save fails. Cancelling the
+     * returned Future stops the save at the next slice and deletes the
+     * partial file. Settings changed on this writer before the save starts
+     * apply to it.
+     *
+     * @return the result of saveStackHDF5, or false if the image stayed locked
+     */
+    public Future<Boolean> saveInBackground(String fileName, ImagePlus img) {
+        AtomicBoolean cancelled = new AtomicBoolean();
+        // set by whichever runs first, the save or a cancel before it, which then owns the lock
+        AtomicBoolean started = new AtomicBoolean();
+        boolean escape = cancelOnEscape;
+        ImageStack stack = img.getStack();
+        ImagePlus source = img;
+        boolean locked = false;
+        if (stack.isVirtual()) {
+            locked = img.lockSilently();
+        } else {
+            int[] dims = img.getDimensions();
+            source = new ImagePlus(img.getTitle(), stack.duplicate());
+            source.setDimensions(dims[2], dims[3], dims[4]);
+            source.setCalibration(img.getCalibration());
+        }
+        final ImagePlus snapshot = source;
+        final boolean lockedNow = locked;
+        FutureTask<Boolean> task = new FutureTask<Boolean>(() -> {
+            if (!started.compareAndSet(false, true))
+                return false;
+            boolean lockHeld = lockedNow || !stack.isVirtual() || lockWithin(img, LOCK_WAIT_MILLIS);
+            if (!lockHeld) {
+                IJ.log(MESSAGE_PREFIX + img.getTitle() + " is locked by another command, not saved to " + fileName);
+                return false;
+            }
+            try {
+                return save(fileName, snapshot, () -> {
+                    if (escape && IJ.escapePressed())
+                        cancelled.set(true);
+                    return cancelled.get();
+                });
+            } finally {
+                if (stack.isVirtual())
+                    img.unlock();
+            }
+        }) {
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                cancelled.set(true);
+                boolean done = super.cancel(mayInterruptIfRunning);
+                // a save cancelled before it started never releases the lock itself
+                if (done && lockedNow && started.compareAndSet(false, true))
+                    img.unlock();
+                return done;
+            }
+        };
+        SAVES.execute(task);
+        return task;
+    }
+
+    private static boolean lockWithin(ImagePlus img, long millis) throws InterruptedException {
+        long end = System.currentTimeMillis() + millis;
+        while (!img.lockSilently()) {
+            if (System.currentTimeMillis() >= end)
+                return false;
+            Thread.sleep(50);
+        }
+        return true;
+    }
+
+    /**
+     * Asks for the encoder settings. The fields are recorded as macro
+     * options, so batch macros can pick presets and thread counts.
+     */
+    boolean showSettingsDialog() {
+        GenericDialog gd = new GenericDialog("Save as H5J");
+        gd.addChoice("Codec", EncoderSettings.CODECS, settings.getCodec());
+        gd.addChoice("Preset", EncoderSettings.PRESETS, settings.getPreset());
+        gd.addNumericField("CRF (-1 = default for bit depth)", settings.getCrf(), 0);
+        gd.addNumericField("Frame threads (0 = auto)", settings.getFrameThreads(), 0);
+        gd.addStringField("Pools (empty = auto)", settings.getPools());
+        gd.addNumericField("Lookahead (-1 = preset default)", settings.getLookahead(), 0);
+        gd.addCheckbox("WPP (wavefront parallel rows)", settings.isWpp());
+        gd.addNumericField("Parallel channels", channelThreads, 0);
+        gd.addNumericField("Saturated 16-bit samples (%)", saturated, 2);
+        gd.addNumericField("Tile size (0 = whole planes)", tileSize, 0);
+        gd.addNumericField("Parallel tiles", tileThreads, 0);
+        gd.addNumericField("Pipeline depth (frames, 1 = serial)", pipelineDepth, 0);
+        gd.addNumericField("Pyramid levels (0-3)", pyramidLevels, 0);
+        gd.showDialog();
+        if (gd.wasCanceled())
+            return false;
+        settings.setCodec(gd.getNextChoice())
+                .setPreset(gd.getNextChoice())
+                .setCrf((int) gd.getNextNumber())
+                .setFrameThreads((int) gd.getNextNumber())
+                .setPools(gd.getNextString())
+                .setLookahead((int) gd.getNextNumber())
+                .setWpp(gd.getNextBoolean());
+        setChannelThreads((int) gd.getNextNumber());
+        setSaturated(gd.getNextNumber());
+        setTileSize((int) gd.getNextNumber());
+        setTileThreads((int) gd.getNextNumber());
+        setPipelineDepth((int) gd.getNextNumber());
+        setPyramidLevels((int) gd.getNextNumber());
+        return true;
     }
 
     public boolean saveStackFFMpeg(String file_name, ImagePlus img) {
@@ -71,86 +503,162 @@ public class H5j_Writer extends ImagePlus implements PlugInFilter {
         int nFrame = dims[4];
         int bdepth = img.getBitDepth();
         ImageStack stack = img.getStack();
-        ImageProcessor[] iplist = new ImageProcessor[d * nCh];
 
-        for (int c = 0; c < nCh; ++c) {
-            for (int z = 0; z < d; ++z) {
-                iplist[c * d + z] = stack.getProcessor(img.getStackIndex(c + 1, z + 1, 1));
+        // Only the first channel of 16-bit data is written, fitted to 12 bits
+        // unless the codec keeps all 16
+        short[] lut = null;
+        if (bdepth > 8 && !settings.keeps16Bit()) {
+            int[] indices = new int[d * nFrame];
+            for (int t = 0; t < nFrame; ++t)
+                for (int z = 0; z < d; ++z)
+                    indices[t * d + z] = img.getStackIndex(1, z + 1, t + 1);
+            try (SliceReader slices = new SliceReader(stack, indices, 0)) {
+                IntensityRange range = IntensityRange.measure(slices, saturated);
+                IJ.log("Intensity range of " + file_name + ": " + range);
+                lut = range.lut();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
             }
         }
 
-        double default_irange = 1.0; // assumes data range is 0-255.0
-        if (bdepth > 8)
-            IJ.run(img, "Multiply...", "value=16"); // 0-4096, like our microscope images
-        List<Double> imin = new ArrayList<>(Collections.nCopies(nCh, 0.0));
-        List<Double> irange2 = new ArrayList<>(Collections.nCopies(nCh, default_irange));
-
-        FFMpegEncoder encoder = new FFMpegEncoder(
+        try (FFMpegEncoder encoder = new FFMpegEncoder(
                 file_name,
                 w, h, bdepth,
-                "libx265",
-                AV_CODEC_ID_H265,
-                "crf=7:psy-rd=1.0");
-        for (int z = 0; z < d; ++z) {
-            for (int y = 0; y < h; ++y) {
-                for (int x = 0; x < w; ++x) {
-                    int spxid = y * w + x;
-                    for (int c = 0; c < 3; ++c) {
-                        int ic = c;
-                        if (c >= nCh) ic = 0; // single channel volume to gray RGB movie
-                        double val = iplist[ic * d + z].getf(spxid);
-                        val = (val - imin.get(ic)) * irange2.get(ic); // rescale to range 0-255
-                        encoder.setPixelIntensity(x, y, c, (byte) val);
+                settings.encoderName(),
+                settings.codecId(),
+                settings.getCrf() == EncoderSettings.AUTO ? settings.copy().setCrf(7) : settings)) {
+            if (!encoder.isReady())
+                return false;
+            // Timepoints are concatenated into one movie; frame t * d + z holds slice z of timepoint t
+            for (int t = 0; t < nFrame; ++t) {
+                for (int z = 0; z < d; ++z) {
+                    if (bdepth == 8) {
+                        // single channel volume to gray RGB movie
+                        byte[] r = (byte[]) stack.getPixels(img.getStackIndex(1, z + 1, t + 1));
+                        byte[] g = nCh > 1 ? (byte[]) stack.getPixels(img.getStackIndex(2, z + 1, t + 1)) : r;
+                        byte[] b = nCh > 2 ? (byte[]) stack.getPixels(img.getStackIndex(3, z + 1, t + 1)) : r;
+                        encoder.setPlane(r, g, b, w, h, w);
+                    } else {
+                        encoder.setPlane((short[]) stack.getPixels(img.getStackIndex(1, z + 1, t + 1)), w, h, w, lut);
                     }
+                    encoder.write_frame();
                 }
             }
-            encoder.write_frame();
+            encoder.close();
+            return !encoder.failed();
         }
-
-        encoder.close();
-
-        return true;
     }
 
-    int nearestPowerOfEight(int val) {
+    static int nearestPowerOfEight(int val) {
         int lb = val >> 3 << 3;
         int ub = (val + 8) >> 3 << 3;
 
         return (lb == val) ? lb : ub;
     }
 
-    boolean saveStackHDF5(String fileName, ImagePlus img) {
+    /**
+     * Packet index of the channel dataset at path: an int64 matrix with one
+     * row of (frame, keyframe) per packet. It is kept
+     * outside the channel groups, which loaders enumerate as channels.
+     */
+    static String indexPath(String datasetPath) {
+        return INDEX_GROUP + datasetPath;
+    }
+
+    /**
+     * Dataset of the tile in the given row and column of a tiled channel.
+     */
+    static String tilePath(String channelPath, int row, int column) {
+        return channelPath + "/tile_" + row + "_" + column;
+    }
+
+    /**
+     * Group holding the channels of pyramid level k (downsampled 2^k times)
+     * of timepoint t, or of the only timepoint if series is false.
+     */
+    static String pyramidGroup(int level, int t, boolean series) {
+        String group = "/Pyramid/Level_" + level;
+        return series ? group + "/Timepoint_" + t : group;
+    }
+
+    /**
+     * Group holding the channels of timepoint t when a time series is saved.
+     */
+    static String timepointGroup(int t) {
+        return "/Timepoints/Timepoint_" + t;
+    }
+
+    /**
+     * Writes img to fileName as H5J. Needs no display, so it can be used
+     * headless; see H5jConverter for the command line front end.
+     *
+     * @return true if every channel was encoded and written
+     */
+    public boolean saveStackHDF5(String fileName, ImagePlus img) {
+        return save(fileName, img, () -> false);
+    }
+
+    /** A check, made after every slice, for whether a save should stop. */
+    private interface Cancellation {
+        boolean isCancelled();
+    }
+
+    private boolean save(String fileName, ImagePlus img, Cancellation cancellation) {
+        List<WriteMetrics.Channel> channelMetrics = Collections.synchronizedList(new ArrayList<>());
+        long start = System.nanoTime();
+        boolean success;
+        long peakBytes;
+        try (FramePool.Peak peak = FramePool.track_peak()) {
+            success = writeStack(fileName, img, channelMetrics, cancellation);
+            peakBytes = peak.bytes();
+        }
+        if (metricsListeners.isEmpty() && !metricsJson)
+            return success;
+        WriteMetrics metrics = new WriteMetrics(fileName, success, System.nanoTime() - start,
+                peakBytes, channelMetrics);
+        for (WriteMetrics.Listener listener : metricsListeners)
+            listener.writeFinished(metrics);
+        if (metricsJson) {
+            try {
+                Files.write(new File(fileName + ".metrics.json").toPath(),
+                        metrics.toJson().getBytes(StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                IJ.log(MESSAGE_PREFIX + "Unable to write metrics: " + e.getMessage());
+            }
+        }
+        return success;
+    }
+
+    private boolean writeStack(String fileName, ImagePlus img, List<WriteMetrics.Channel> channelMetrics,
+                               Cancellation cancellation) {
         try {
             FileInfo finfo = img.getFileInfo();
             if (finfo == null) return false;
             int[] dims = img.getDimensions();
             int w = dims[0];
             int h = dims[1];
-            int nCh = dims[2];
             int d = dims[3];
             int nFrame = dims[4];
-            int bdepth = img.getBitDepth();
+            // RGB slices are split into three 8-bit channels and float ones
+            // are quantized to 16 bits as they are read
+            int sourceDepth = img.getBitDepth();
+            boolean rgb = sourceDepth == 24;
+            boolean floats = sourceDepth == 32;
+            int nCh = rgb ? dims[2] * 3 : dims[2];
+            int bdepth = rgb ? 8 : floats ? 16 : sourceDepth;
             double[] vx_size = {finfo.pixelWidth, finfo.pixelHeight, finfo.pixelDepth};
             double[] im_size = {w * vx_size[0], h * vx_size[1], d * vx_size[2]};
             String unit = finfo.unit != null ? finfo.unit : "";
 
             ImageStack stack = img.getStack();
-            ImageProcessor[] iplist = new ImageProcessor[d * nCh];
-
-            for (int c = 0; c < nCh; ++c) {
-                for (int z = 0; z < d; ++z) {
-                    iplist[c * d + z] = stack.getProcessor(img.getStackIndex(c + 1, z + 1, 1));
-                }
-            }
 
             final File h5file = new File(fileName);
             if (h5file.exists())
                 h5file.delete();
             final IHDF5Writer writer = HDF5Factory.configure(h5file)
                     .useSimpleDataSpaceForAttributes()
-                    .dontUseExtendableDataTypes()
                     .writer();
-            writer.object().createGroup("/Channels");
 
             long scaledHeight = nearestPowerOfEight(h);
             long scaledWidth = nearestPowerOfEight(w);
@@ -159,90 +667,249 @@ public class H5j_Writer extends ImagePlus implements PlugInFilter {
             long pad_right = (scaledWidth - w);
             long pad_bottom = (scaledHeight - h);
 
-            writer.float64().setArrayAttr("/", "image_size", im_size);
-            writer.float64().setArrayAttr("/", "voxel_size", vx_size);
-            writer.string().setAttr("/", "unit", unit);
-
-            writer.int64().setAttr("/Channels", "width", w);
-            writer.int64().setAttr("/Channels", "height", h);
-            writer.int64().setAttr("/Channels", "frames", d);
-            writer.int64().setAttr("/Channels", "pad_right", pad_right);
-            writer.int64().setAttr("/Channels", "pad_bottom", pad_bottom);
-
-            String options = (bdepth == 8 ? "crf=15:psy-rd=1.0" : "crf=7:psy-rd=1.0");
-
-            double total_slices = nCh * d;
-            long current_slice = 0;
-            IJ.showProgress(current_slice / total_slices);
-            for (int c = 0; c < nCh; c++) {
-                double default_irange = 1.0; // assumes data range is 0-255.0
-                List<Double> imin = new ArrayList<>(Collections.nCopies(nCh, 0.0));
-                List<Double> irange2 = new ArrayList<>(Collections.nCopies(nCh, default_irange));
-                FFMpegEncoder encoder = new FFMpegEncoder(
-                        (String) null,
-                        (int) scaledWidth, (int) scaledHeight, bdepth,
-                        "libx265",
-                        AV_CODEC_ID_H265,
-                        options);
-                if (!encoder.isReady()) {
-                    IJ.log("FFMpegEncoder failed to initialize (codec not found - check that JavaCPP native libs are accessible)");
-                    return false;
+            // Attributes are collected while encoding and written in one
+            // pass once every object exists
+            final AttributeBatch attributes = new AttributeBatch();
+            final int chunk = alignedChunkSize();
+            attributes.set("/", "image_size", im_size);
+            attributes.set("/", "voxel_size", vx_size);
+            attributes.set("/", "unit", unit);
+            attributes.set("/", "bit_depth", bdepth);
+            if (sourceDepth != bdepth)
+                attributes.set("/", "source_bit_depth", sourceDepth);
+            writer.object().createGroup(INDEX_GROUP);
+            if (nFrame > 1) {
+                writer.object().createGroup("/Timepoints");
+                writer.object().createGroup(INDEX_GROUP + "/Timepoints");
+                attributes.set("/", "timepoints", nFrame);
+            }
+
+            final EncoderSettings settings = this.settings.copy();
+            settings.writeAttributes(attributes, "/", bdepth);
+
+            final int levels = Pyramid.levels(w, h, pyramidLevels);
+            if (levels > 0) {
+                writer.object().createGroup("/Pyramid");
+                writer.object().createGroup(INDEX_GROUP + "/Pyramid");
+                for (int k = 1; k <= levels; k++) {
+                    writer.object().createGroup(pyramidGroup(k, 0, false));
+                    writer.object().createGroup(INDEX_GROUP + pyramidGroup(k, 0, false));
                 }
-                // If the image needs padding, fill the expanded border regions with black
-                if (bdepth == 8) {
-                    for (int z = 0; z < d; z++) {
-                        for (int y = 0; y < scaledHeight; y++) {
-                            for (int x = 0; x < scaledWidth; x++) {
-                                // If inside the area with valid data
-                                if (x < w && y < h) {
-                                    int ic = c;
-                                    if (c >= nCh) ic = 0; // single channel volume to gray RGB movie
-                                    double val = iplist[ic * d + z].getf(y * w + x);
-                                    val = (val - imin.get(ic)) * irange2.get(ic); // rescale to range 0-255
-                                    for (int cc = 0; cc < 3; ++cc)
-                                        encoder.setPixelIntensity(x, y, cc, (byte) val);
-                                } else
-                                    for (int cc = 0; cc < 3; ++cc)
-                                        encoder.setPixelIntensity(x, y, cc, (byte) 0);
-                            }
+                attributes.set("/", "pyramid_levels", levels);
+            }
+
+            if (shardCount > 1) {
+                attributes.set("/", "shard_index", shardIndex);
+                attributes.set("/", "shard_count", shardCount);
+            }
+
+            int shardChannels = 0;
+            for (int n = shardIndex; n < nCh * nFrame; n += shardCount)
+                shardChannels++;
+            final double total_slices = (double) shardChannels * d;
+            final AtomicLong current_slice = new AtomicLong();
+            IJ.showProgress(0.0);
+            ExecutorService executor = Executors.newFixedThreadPool(Math.min(channelThreads, nCh));
+            final boolean tiled = tileSize > 0 && (w > tileSize || h > tileSize);
+            final ExecutorService tileExecutor = tiled ? Executors.newFixedThreadPool(tileThreads) : null;
+            boolean encoded = true;
+            try {
+                // Each timepoint is encoded and flushed before the next one is
+                // touched, and slices are pulled one at a time in encode order,
+                // so virtual stacks larger than the heap can be written.
+                final int prefetch = stack.isVirtual() ? prefetchSlices : 0;
+                for (int t = 0; t < nFrame && encoded; t++) {
+                    final String group = nFrame > 1 ? timepointGroup(t) : "/Channels";
+                    final int timepoint = t;
+
+                    writer.object().createGroup(group);
+                    writer.object().createGroup(INDEX_GROUP + group);
+                    attributes.set(group, "width", w);
+                    attributes.set(group, "height", h);
+                    attributes.set(group, "frames", d);
+                    attributes.set(group, "pad_right", pad_right);
+                    attributes.set(group, "pad_bottom", pad_bottom);
+                    attributes.set(group, "codec", settings.getCodec());
+                    for (int k = 1; k <= levels; k++) {
+                        String level = pyramidGroup(k, t, nFrame > 1);
+                        if (nFrame > 1) {
+                            writer.object().createGroup(level);
+                            writer.object().createGroup(INDEX_GROUP + level);
                         }
-                        encoder.write_frame();
-                        current_slice++;
-                        IJ.showProgress(current_slice / total_slices);
-                        if (z == d - 1)
-                            encoder.write_frame();
+                        int lw = Pyramid.half(w, k);
+                        int lh = Pyramid.half(h, k);
+                        attributes.set(level, "width", lw);
+                        attributes.set(level, "height", lh);
+                        attributes.set(level, "frames", Pyramid.half(d, k));
+                        attributes.set(level, "pad_right", nearestPowerOfEight(lw) - lw);
+                        attributes.set(level, "pad_bottom", nearestPowerOfEight(lh) - lh);
+                        attributes.set(level, "codec", settings.getCodec());
+                        attributes.set(level, "downsampling", 1 << k);
                     }
-                } else {
-                    for (int z = 0; z < d; z++) {
-                        for (int y = 0; y < scaledHeight; y++) {
-                            for (int x = 0; x < scaledWidth; x++) {
-                                // If inside the area with valid data
-                                if (x < w && y < h) {
-                                    double val = iplist[c * d + z].getf(y * w + x) * 16;
-                                    encoder.setPixelIntensity(x, y, (short) val);
-                                } else
-                                    encoder.setPixelIntensity(x, y, (short) 0);
+
+                    List<Future<Boolean>> results = new ArrayList<>();
+                    for (int c = 0; c < nCh; c++) {
+                        if ((t * nCh + c) % shardCount != shardIndex)
+                            continue;
+                        final int channel = c;
+                        results.add(executor.submit(() -> {
+                            long channelStart = System.nanoTime();
+                            String dataset_path = group + "/Channel_" + channel;
+                            // every pass over the slices stops on cancellation, not only the encode
+                            Runnable checkCancelled = () -> {
+                                if (cancellation.isCancelled())
+                                    throw new CancellationException();
+                            };
+                            int source = rgb ? channel / 3 : channel;
+                            int[] indices = new int[d];
+                            for (int z = 0; z < d; z++)
+                                indices[z] = img.getStackIndex(source + 1, z + 1, timepoint + 1);
+                            UnaryOperator<Object> convert = null;
+                            if (rgb) {
+                                int shift = 16 - 8 * (channel % 3);
+                                convert = pixels -> PixelKernels.component((int[]) pixels, shift);
                             }
-                        }
-                        encoder.write_frame();
-                        current_slice++;
-                        IJ.showProgress(current_slice / total_slices);
-                        if (z == d - 1)
-                            encoder.write_frame();
+                            // 16-bit channels are fitted to 12 bits from their own histogram,
+                            // read in a first pass, unless the codec keeps all 16 bits;
+                            // float channels are mapped straight onto the codes stored.
+                            // The source pixels are never modified
+                            IntensityRange range = null;
+                            FloatRange floatRange = null;
+                            long rangeNanos = 0;
+                            if (floats) {
+                                try (SliceReader slices = new SliceReader(stack, indices, prefetch)) {
+                                    floatRange = FloatRange.measure(slices,
+                                            settings.keeps16Bit() ? 65535 : IntensityRange.MAX_CODE, checkCancelled);
+                                }
+                                convert = floatRange::quantize;
+                                rangeNanos = System.nanoTime() - channelStart;
+                            } else if (bdepth > 8 && !settings.keeps16Bit()) {
+                                try (SliceReader slices = new SliceReader(stack, indices, prefetch)) {
+                                    range = IntensityRange.measure(slices, saturated, checkCancelled);
+                                }
+                                rangeNanos = System.nanoTime() - channelStart;
+                            }
+                            // Float codes already fit in 12 bits and go to the encoder as they
+                            // are; without a LUT it would take them as full 16-bit samples
+                            short[] lut = range != null ? range.lut()
+                                    : floats && !settings.keeps16Bit() ? IntensityRange.IDENTITY.lut() : null;
+                            EncoderSettings channelSettings = settings;
+                            if (settings.isCrfTuned()) {
+                                CrfTuner.Trial tuned = CrfTuner.sample(stack, indices, convert, w, h, bdepth,
+                                        lut, settings).tune(checkCancelled);
+                                int crf = settings.getCrf(bdepth);
+                                if (tuned == null) {
+                                    IJ.log(MESSAGE_PREFIX + "CRF trials of " + dataset_path + " failed, using CRF " + crf);
+                                } else {
+                                    IJ.log("Tuned " + dataset_path + ": " + tuned);
+                                    tuned.writeAttributes(attributes, dataset_path);
+                                    crf = tuned.crf;
+                                }
+                                channelSettings = settings.copy().setCrf(crf);
+                                attributes.set(dataset_path, "encoder_crf", crf);
+                                attributes.set(dataset_path, "encoder_x265_params", channelSettings.x265Params(bdepth));
+                                rangeNanos = System.nanoTime() - channelStart;
+                            }
+                            List<Tile> tiles = tiled
+                                    ? createTiles(writer, attributes, dataset_path, w, h)
+                                    : Collections.singletonList(new Tile(dataset_path, 0, 0, w, h));
+                            // jhdf5 is not thread-safe, so the outputs serialize their writes
+                            for (Tile tile : tiles)
+                                tile.output = new HDF5StreamOutput(writer, tile.path, chunk);
+                            if (tiled) {
+                                for (Tile tile : tiles) {
+                                    attributes.set(tile.path, "x", tile.x);
+                                    attributes.set(tile.path, "y", tile.y);
+                                    attributes.set(tile.path, "width", tile.width);
+                                    attributes.set(tile.path, "height", tile.height);
+                                }
+                            }
+                            if (range != null)
+                                range.writeAttributes(attributes, dataset_path);
+                            if (floatRange != null)
+                                floatRange.writeAttributes(attributes, dataset_path);
+                            Pyramid pyramid = null;
+                            if (levels > 0) {
+                                String[] paths = new String[levels];
+                                for (int k = 1; k <= levels; k++) {
+                                    paths[k - 1] = pyramidGroup(k, timepoint, nFrame > 1) + "/Channel_" + channel;
+                                    if (range != null)
+                                        range.writeAttributes(attributes, paths[k - 1]);
+                                    if (floatRange != null)
+                                        floatRange.writeAttributes(attributes, paths[k - 1]);
+                                }
+                                pyramid = new Pyramid(writer, paths, w, h, bdepth, lut, chunk);
+                            }
+                            ConstantSlices constants = constantTolerance < 0 ? null
+                                    : new ConstantSlices(channelSettings.isLossless() ? 0 : constantTolerance);
+                            boolean ok;
+                            long fetchNanos;
+                            try (SliceReader slices = new SliceReader(stack, indices, prefetch, convert)) {
+                                ok = encodeChannel(tiles, pyramid, constants, slices, w, bdepth, lut,
+                                        channelSettings, chunk, tileExecutor,
+                                        () -> {
+                                            checkCancelled.run();
+                                            IJ.showProgress(current_slice.incrementAndGet() / total_slices);
+                                        });
+                                fetchNanos = slices.fetchNanos();
+                            }
+                            if (!ok || !streamsWritten(dataset_path, tiles, pyramid))
+                                return false;
+                            long bytes = 0;
+                            synchronized (writer) {
+                                for (Tile tile : tiles) {
+                                    writer.int64().writeMatrix(indexPath(tile.path), tile.encoder.packet_index());
+                                    bytes += tile.encoder.output_size();
+                                }
+                                if (pyramid != null) {
+                                    for (Pyramid.Level level : pyramid.levels())
+                                        writer.int64().writeMatrix(indexPath(level.path), level.encoder.packet_index());
+                                }
+                            }
+                            String constant = "";
+                            if (constants != null && constants.count() > 0) {
+                                constants.writeAttributes(attributes, dataset_path);
+                                constant = ", " + constants.count() + " constant slices";
+                            }
+                            IJ.log("Finished Dataset " + dataset_path + " (" + bytes + " bytes" + constant + ")");
+                            IJ.showStatus("H5J: finished " + dataset_path);
+                            channelFinished(channelMetrics, dataset_path, tiles, pyramid, d,
+                                    (long) d * w * h * (rgb ? 1 : sourceDepth / 8),
+                                    rangeNanos, fetchNanos, System.nanoTime() - channelStart);
+                            return true;
+                        }));
                     }
+                    for (Future<Boolean> result : results)
+                        encoded &= result.get();
+                    writer.file().flush();
                 }
-
-                for (int rem = encoder.encoded_frames(); rem < d + 1; rem++)
-                    encoder.encode(null);
-
-                encoder.close();
-                byte[] arr = new byte[encoder.buffer_size()];
-                encoder.buffer().get(arr);
-                String dataset_path = "/Channels/Channel_" + c;
-                writer.uint8().createArray(dataset_path, arr.length);
-                writer.uint8().writeArray(dataset_path, arr);
-                IJ.log("Finished Dataset " + dataset_path + " (" + arr.length + " bytes)");
+            } catch (InterruptedException e) {
+                // the background save was cancelled while waiting for its channels
+                encoded = false;
+            } catch (ExecutionException e) {
+                if (!(e.getCause() instanceof CancellationException))
+                    e.printStackTrace();
+                encoded = false;
+            } finally {
+                executor.shutdownNow();
+                if (tileExecutor != null)
+                    tileExecutor.shutdownNow();
+                // channels still running use the writer until they stop
+                awaitTermination(executor);
+                if (tileExecutor != null)
+                    awaitTermination(tileExecutor);
             }
+            if (!encoded) {
+                writer.close();
+                if (cancellation.isCancelled() && h5file.delete())
+                    IJ.log(MESSAGE_PREFIX + "Cancelled, removed " + fileName);
+                return false;
+            }
+            attributes.write(writer);
+            // Loaders that predate time series open /Channels, which for a
+            // time series shows the first timepoint.
+            if (nFrame > 1)
+                writer.object().createSoftLink(timepointGroup(0), "/Channels");
             writer.file().flush();
             writer.close();
             return true;
@@ -253,4 +920,222 @@ public class H5j_Writer extends ImagePlus implements PlugInFilter {
         return false;
     }
 
+    /**
+     * Whether every stream of a channel was written completely; logs the
+     * first failure otherwise, e.g. a full disk under the HDF5 file.
+     */
+    private static boolean streamsWritten(String path, List<Tile> tiles, Pyramid pyramid) {
+        List<FFMpegEncoder> encoders = new ArrayList<>();
+        for (Tile tile : tiles)
+            encoders.add(tile.encoder);
+        if (pyramid != null) {
+            for (Pyramid.Level level : pyramid.levels())
+                encoders.add(level.encoder);
+        }
+        for (FFMpegEncoder encoder : encoders) {
+            if (encoder.failed()) {
+                RuntimeException error = encoder.output_error();
+                IJ.log(MESSAGE_PREFIX + "Writing " + path + " failed"
+                        + (error == null ? "" : ": " + error.getMessage()));
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void awaitTermination(ExecutorService executor) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                if (executor.awaitTermination(1, TimeUnit.MINUTES))
+                    break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Sums the stage times of a channel's closed encoders, those of its
+     * tiles and its pyramid levels, into its WriteMetrics.Channel and
+     * passes that to the listeners.
+     */
+    private void channelFinished(List<WriteMetrics.Channel> channelMetrics, String path, List<Tile> tiles,
+                                 Pyramid pyramid, int frames, long inputBytes, long rangeNanos, long fetchNanos,
+                                 long wallNanos) {
+        List<FFMpegEncoder> encoders = new ArrayList<>();
+        for (Tile tile : tiles)
+            encoders.add(tile.encoder);
+        if (pyramid != null) {
+            for (Pyramid.Level level : pyramid.levels())
+                encoders.add(level.encoder);
+        }
+        long output = 0, copy = 0, convert = 0, encode = 0, mux = 0, write = 0, memory = 0;
+        for (FFMpegEncoder encoder : encoders) {
+            output += encoder.output_size();
+            copy += encoder.copy_nanos();
+            convert += encoder.convert_nanos();
+            encode += encoder.encode_nanos();
+            mux += encoder.mux_nanos();
+            write += encoder.write_nanos();
+            memory += encoder.native_bytes();
+        }
+        WriteMetrics.Channel metrics = new WriteMetrics.Channel(path, frames, inputBytes, output, rangeNanos,
+                fetchNanos, copy, convert, encode, mux, write, wallNanos, memory, tiles.get(0).pipeline);
+        channelMetrics.add(metrics);
+        for (WriteMetrics.Listener listener : metricsListeners)
+            listener.channelFinished(metrics);
+    }
+
+    /**
+     * One encoded region of a channel: the whole plane, or a tile of it.
+     */
+    private static final class Tile {
+        final String path;
+        final int x;
+        final int y;
+        final int width;
+        final int height;
+        HDF5StreamOutput output;
+        FFMpegEncoder encoder;
+        /** EncodePipeline.utilization() of an untiled channel's encode, else null. */
+        double[] pipeline;
+
+        Tile(String path, int x, int y, int width, int height) {
+            this.path = path;
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    /**
+     * Turns channelPath into a group of tile datasets and returns their
+     * geometry. The grid is added to attributes for the group (tile_width,
+     * tile_height, tiles_x, tiles_y); each tile's position and unpadded size
+     * go on its dataset (x, y, width, height) once that exists.
+     */
+    private List<Tile> createTiles(IHDF5Writer writer, AttributeBatch attributes, String channelPath, int w, int h) {
+        int columns = (w + tileSize - 1) / tileSize;
+        int rows = (h + tileSize - 1) / tileSize;
+        List<Tile> tiles = new ArrayList<>();
+        for (int row = 0; row < rows; row++) {
+            for (int column = 0; column < columns; column++) {
+                int x = column * tileSize;
+                int y = row * tileSize;
+                tiles.add(new Tile(tilePath(channelPath, row, column), x, y,
+                        Math.min(tileSize, w - x), Math.min(tileSize, h - y)));
+            }
+        }
+        synchronized (writer) {
+            writer.object().createGroup(channelPath);
+            writer.object().createGroup(indexPath(channelPath));
+        }
+        attributes.set(channelPath, "tile_width", tileSize);
+        attributes.set(channelPath, "tile_height", tileSize);
+        attributes.set(channelPath, "tiles_x", columns);
+        attributes.set(channelPath, "tiles_y", rows);
+        return tiles;
+    }
+
+    /**
+     * Encodes the slices of one channel with the configured codec, one stream per tile, into
+     * the tiles' outputs; 16-bit samples are mapped to 12 bits through lut.
+     * Each slice is read once and its tiles are encoded in parallel on
+     * tileExecutor; an untiled channel is encoded through an EncodePipeline
+     * instead. Each slice is also added to pyramid, if not null, and
+     * slices that constants finds constant are filled with their value
+     * instead of copied. Leaves the
+     * closed encoders, for their size and packet index, in the tiles and
+     * the pyramid; returns false if an encoder could not be initialized.
+     */
+    private boolean encodeChannel(List<Tile> tiles, Pyramid pyramid, ConstantSlices constants, SliceReader slices, int w, int bdepth, short[] lut,
+                                  EncoderSettings settings, int chunk, ExecutorService tileExecutor,
+                                  Runnable sliceDone) throws InterruptedException, ExecutionException {
+        try {
+            for (Tile tile : tiles) {
+                tile.encoder = new FFMpegEncoder(
+                        tile.output, chunk,
+                        nearestPowerOfEight(tile.width), nearestPowerOfEight(tile.height), bdepth,
+                        settings.encoderName(),
+                        settings.codecId(),
+                        settings);
+                if (!tile.encoder.isReady()) {
+                    IJ.log("FFMpegEncoder failed to initialize (codec not found - check that JavaCPP native libs are accessible)");
+                    return false;
+                }
+            }
+            if (pyramid != null && !pyramid.open(settings, chunk))
+                return false;
+            if (tiles.size() == 1 && pipelineDepth > 1) {
+                Tile tile = tiles.get(0);
+                EncodePipeline pipeline = new EncodePipeline(tile.encoder, pipelineDepth,
+                        !tile.encoder.writes_direct(lut != null));
+                pipeline.run(slices, (slot, pixels) -> {
+                    int value = constants == null ? -1 : constants.add(pixels);
+                    if (value < 0 || !slot.setConstant(value, tile.width, tile.height, lut)) {
+                        if (bdepth == 8)
+                            slot.setPlane((byte[]) pixels, 0, tile.width, tile.height, w);
+                        else
+                            slot.setPlane((short[]) pixels, 0, tile.width, tile.height, w, lut);
+                    }
+                    if (pyramid != null)
+                        pyramid.add(pixels);
+                }, sliceDone);
+                if (pyramid != null)
+                    pyramid.finish();
+                tile.pipeline = pipeline.utilization();
+                return true;
+            }
+            List<Callable<Void>> jobs = new ArrayList<>();
+            final Object[] slice = new Object[1];
+            final int[] value = {-1};
+            for (Tile tile : tiles) {
+                jobs.add(() -> {
+                    // Each encoder clears its frame once, so the padding stays black
+                    int offset = tile.y * w + tile.x;
+                    if (value[0] < 0 || !tile.encoder.setConstant(value[0], tile.width, tile.height, lut)) {
+                        if (bdepth == 8)
+                            tile.encoder.setPlane((byte[]) slice[0], offset, tile.width, tile.height, w);
+                        else
+                            tile.encoder.setPlane((short[]) slice[0], offset, tile.width, tile.height, w, lut);
+                    }
+                    tile.encoder.write_frame();
+                    return null;
+                });
+            }
+            for (int z = 0; z < slices.size(); z++) {
+                slice[0] = slices.next();
+                value[0] = constants == null ? -1 : constants.add(slice[0]);
+                if (jobs.size() == 1) {
+                    try {
+                        jobs.get(0).call();
+                    } catch (Exception e) {
+                        throw new ExecutionException(e);
+                    }
+                } else {
+                    for (Future<Void> job : tileExecutor.invokeAll(jobs))
+                        job.get();
+                }
+                if (pyramid != null)
+                    pyramid.add(slice[0]);
+                sliceDone.run();
+            }
+            if (pyramid != null)
+                pyramid.finish();
+            return true;
+        } finally {
+            // flushes each stream and frees its native resources, also on failure
+            for (Tile tile : tiles) {
+                if (tile.encoder != null)
+                    tile.encoder.close();
+            }
+            if (pyramid != null)
+                pyramid.close();
+        }
+    }
+
 }
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2015 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+
+package org.janelia.it.fiji.plugins.h5j;
+
+import ch.systemsx.cisd.hdf5.IHDF5Writer;
+
+/**
+ * Appends an encoded stream to an extendable, chunked uint8 dataset.
+ *
+ * jhdf5 is not thread-safe, so every access is synchronized on the writer;
+ * several channels can then stream into the same file at once.
+ */
+class HDF5StreamOutput implements FFMpegEncoder.Output {
+
+    private final IHDF5Writer writer;
+    private final String dataset_path;
+
+    HDF5StreamOutput(IHDF5Writer writer, String dataset_path, int chunk_size) {
+        this.writer = writer;
+        this.dataset_path = dataset_path;
+        synchronized (writer) {
+            writer.uint8().createArray(dataset_path, 0L, chunk_size);
+        }
+    }
+
+    @Override
+    public void write(byte[] data, int length, long offset) {
+        synchronized (writer) {
+            writer.uint8().writeArrayBlockWithOffset(dataset_path, data, length, offset);
+        }
+    }
+
+    String getDatasetPath() {
+        return dataset_path;
+    }
+}
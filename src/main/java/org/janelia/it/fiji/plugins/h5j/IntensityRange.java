@@ -0,0 +1,113 @@
+/*
+ * Copyright 2015 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+
+package org.janelia.it.fiji.plugins.h5j;
+
+import ch.systemsx.cisd.hdf5.IHDF5Reader;
+
+/**
+ * Maps 16-bit samples of one channel onto the 12 bits the encoder keeps:
+ * code = round((value - offset) * scale), clamped to 0..4095, and inverted
+ * by value = code / scale + offset. Data that already fits in 12 bits is
+ * stored unchanged (offset 0, scale 1), as earlier versions of the writer
+ * did; wider data is shifted down to its minimum and, only if the range
+ * still exceeds 4095, scaled to fit.
+ */
+final class IntensityRange {
+
+    static final int MAX_CODE = 4095;
+    static final String OFFSET_ATTRIBUTE = "intensity_offset";
+    static final String SCALE_ATTRIBUTE = "intensity_scale";
+
+    /** Range of data written before the mapping was recorded: samples kept as they are. */
+    static final IntensityRange IDENTITY = new IntensityRange(0, 1.0);
+
+    final int offset;
+    final double scale;
+
+    IntensityRange(int offset, double scale) {
+        this.offset = offset;
+        this.scale = scale;
+    }
+
+    /**
+     * Reads every slice once and derives the range from the histogram of
+     * the channel. saturated is the percentage of samples allowed to clip,
+     * split evenly between both ends, as in ImageJ's Enhance Contrast; with
+     * 0 the exact minimum and maximum are used and nothing is lost but
+     * precision.
+     */
+    static IntensityRange measure(SliceReader slices, double saturated) throws InterruptedException {
+        return measure(slices, saturated, () -> {
+        });
+    }
+
+    /**
+     * As measure(SliceReader, double), running sliceRead after each slice;
+     * it may throw, e.g. a CancellationException, to stop the scan.
+     */
+    static IntensityRange measure(SliceReader slices, double saturated, Runnable sliceRead)
+            throws InterruptedException {
+        int[] histogram = new int[65536];
+        long count = 0;
+        for (int z = 0; z < slices.size(); z++) {
+            short[] pixels = (short[]) slices.next();
+            for (short v : pixels)
+                histogram[v & 0xffff]++;
+            count += pixels.length;
+            sliceRead.run();
+        }
+        long clip = (long) (count * saturated / 200.0);
+        int min = 0;
+        for (long sum = histogram[0]; min < 65535 && sum <= clip; sum += histogram[++min]) ;
+        int max = 65535;
+        for (long sum = histogram[65535]; max > min && sum <= clip; sum += histogram[--max]) ;
+        return of(min, max);
+    }
+
+    static IntensityRange of(int min, int max) {
+        if (max <= MAX_CODE && min >= 0)
+            return IDENTITY;
+        if (max - min <= MAX_CODE)
+            return new IntensityRange(min, 1.0);
+        return new IntensityRange(min, MAX_CODE / (double) (max - min));
+    }
+
+    /** Code of every 16-bit value, indexed by the unsigned sample. */
+    short[] lut() {
+        short[] lut = new short[65536];
+        for (int v = 0; v < lut.length; v++)
+            lut[v] = (short) Math.max(0, Math.min(MAX_CODE, Math.round((v - offset) * scale)));
+        return lut;
+    }
+
+    /** Restores the 16-bit values of decoded codes in place. */
+    void invert(short[] codes) {
+        if (this == IDENTITY || (offset == 0 && scale == 1.0))
+            return;
+        for (int i = 0; i < codes.length; i++)
+            codes[i] = (short) Math.min(65535, Math.round((codes[i] & 0xffff) / scale + offset));
+    }
+
+    void writeAttributes(AttributeBatch attributes, String path) {
+        attributes.set(path, OFFSET_ATTRIBUTE, (long) offset);
+        attributes.set(path, SCALE_ATTRIBUTE, scale);
+    }
+
+    /** The range recorded on path, or IDENTITY for files written without one. */
+    static IntensityRange read(IHDF5Reader reader, String path) {
+        if (!reader.object().hasAttribute(path, SCALE_ATTRIBUTE))
+            return IDENTITY;
+        return new IntensityRange((int) reader.int64().getAttr(path, OFFSET_ATTRIBUTE),
+                reader.float64().getAttr(path, SCALE_ATTRIBUTE));
+    }
+
+    @Override
+    public String toString() {
+        return "offset " + offset + ", scale " + scale;
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2015 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+
+package org.janelia.it.fiji.plugins.h5j;
+
+/**
+ * Conversions of the slice types the encoder does not take directly (RGB
+ * and 32-bit float) into the 8- and 16-bit planes it does. Each works on
+ * the primitive array of one slice in a single pass, with no boxing and no
+ * allocation besides the result; 8- and 16-bit slices never pass through
+ * here, except to measure the error of trial encodes (see CrfTuner).
+ */
+final class PixelKernels {
+
+    private PixelKernels() {
+    }
+
+    /**
+     * One 8-bit component of packed RGB pixels, as ColorProcessor stores
+     * them: shift 16 for red, 8 for green, 0 for blue.
+     */
+    static byte[] component(int[] rgb, int shift) {
+        byte[] plane = new byte[rgb.length];
+        for (int i = 0; i < rgb.length; i++)
+            plane[i] = (byte) (rgb[i] >> shift);
+        return plane;
+    }
+
+    /**
+     * Widens minMax, {min, max}, to include every finite value of px;
+     * NaN and infinities are skipped.
+     */
+    static void minMax(float[] px, float[] minMax) {
+        float min = minMax[0];
+        float max = minMax[1];
+        for (float v : px) {
+            // false for NaN
+            if (v >= min && v <= max)
+                continue;
+            if (Float.isInfinite(v) || Float.isNaN(v))
+                continue;
+            if (v < min)
+                min = v;
+            if (v > max)
+                max = v;
+        }
+        minMax[0] = min;
+        minMax[1] = max;
+    }
+
+    /**
+     * Maps floats to unsigned codes: round((v - offset) * scale), clamped
+     * to 0..maxCode. NaN becomes 0, infinities the nearest end.
+     */
+    static short[] quantize(float[] px, float offset, float scale, int maxCode) {
+        short[] codes = new short[px.length];
+        for (int i = 0; i < px.length; i++) {
+            float code = (px[i] - offset) * scale + 0.5f;
+            // NaN fails both comparisons and stays 0
+            if (code >= maxCode)
+                codes[i] = (short) maxCode;
+            else if (code >= 1)
+                codes[i] = (short) (int) code;
+        }
+        return codes;
+    }
+
+    /**
+     * Sum of squared differences between width x height of source, starting
+     * at index offset with the given stride, and decoded, a plane of that
+     * size; 16-bit source samples are first mapped through lut, if not
+     * null, as the encoder maps them.
+     */
+    static long squaredError(Object source, int offset, int stride, Object decoded,
+                             int width, int height, short[] lut) {
+        long sum = 0;
+        for (int y = 0; y < height; y++) {
+            int src = offset + y * stride;
+            int dst = y * width;
+            if (source instanceof byte[]) {
+                byte[] a = (byte[]) source;
+                byte[] b = (byte[]) decoded;
+                for (int x = 0; x < width; x++) {
+                    int e = (a[src + x] & 0xff) - (b[dst + x] & 0xff);
+                    sum += e * e;
+                }
+            } else {
+                short[] a = (short[]) source;
+                short[] b = (short[]) decoded;
+                for (int x = 0; x < width; x++) {
+                    int v = a[src + x] & 0xffff;
+                    long e = (lut == null ? v : lut[v] & 0xffff) - (b[dst + x] & 0xffff);
+                    sum += e * e;
+                }
+            }
+        }
+        return sum;
+    }
+
+    /** Inverts quantize: code / scale + offset. */
+    static float[] dequantize(short[] codes, float offset, float scale) {
+        float[] px = new float[codes.length];
+        float step = 1 / scale;
+        for (int i = 0; i < codes.length; i++)
+            px[i] = (codes[i] & 0xffff) * step + offset;
+        return px;
+    }
+}
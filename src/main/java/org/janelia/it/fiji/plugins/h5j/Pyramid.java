@@ -0,0 +1,187 @@
+/*
+ * Copyright 2015 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+
+package org.janelia.it.fiji.plugins.h5j;
+
+import java.util.Arrays;
+
+import ch.systemsx.cisd.hdf5.IHDF5Writer;
+import ij.IJ;
+
+/**
+ * Downsampled copies of one channel, built from its full-resolution
+ * slices while they are encoded, so the stack is read only once. Level k
+ * is the mean of 2^k x 2^k x 2^k voxels; each level is computed from the
+ * one above it and a slice of it is encoded into its own stream as soon
+ * as both source slices have been added.
+ *
+ * Not thread-safe: add() must be called for each slice in order, from one
+ * thread at a time.
+ */
+final class Pyramid implements AutoCloseable {
+
+    static final int MAX_LEVELS = 3;
+
+    /** Levels are only written while both plane dimensions stay at least this large. */
+    static final int MIN_SIZE = 16;
+
+    /** One level: its dataset, the sums of the slice being accumulated and its encoder. */
+    static final class Level {
+        final String path;
+        final int width;
+        final int height;
+        final int sourceWidth;
+        final int sourceHeight;
+        final int[] sum;
+        final HDF5StreamOutput output;
+        int slices;
+        FFMpegEncoder encoder;
+
+        private Level(String path, int width, int height, int sourceWidth, int sourceHeight,
+                      HDF5StreamOutput output) {
+            this.path = path;
+            this.width = width;
+            this.height = height;
+            this.sourceWidth = sourceWidth;
+            this.sourceHeight = sourceHeight;
+            this.sum = new int[width * height];
+            this.output = output;
+        }
+    }
+
+    private final Level[] levels;
+    private final int bdepth;
+    private final short[] lut;
+
+    /**
+     * Number of levels below width x height that are written when up to
+     * requested are asked for.
+     */
+    static int levels(int width, int height, int requested) {
+        int n = 0;
+        while (n < Math.min(requested, MAX_LEVELS) && half(width, n + 1) >= MIN_SIZE && half(height, n + 1) >= MIN_SIZE)
+            n++;
+        return n;
+    }
+
+    /** size divided by 2^level, rounded up. */
+    static int half(int size, int level) {
+        return (size + (1 << level) - 1) >> level;
+    }
+
+    /**
+     * Creates the level datasets; paths[k - 1] is the dataset of level k.
+     * 16-bit levels are mapped to 12 bits through lut, like the channel.
+     */
+    Pyramid(IHDF5Writer writer, String[] paths, int width, int height, int bdepth, short[] lut, int chunk) {
+        this.bdepth = bdepth;
+        this.lut = lut;
+        levels = new Level[paths.length];
+        for (int k = 0; k < paths.length; k++) {
+            levels[k] = new Level(paths[k], half(width, k + 1), half(height, k + 1),
+                    half(width, k), half(height, k), new HDF5StreamOutput(writer, paths[k], chunk));
+        }
+    }
+
+    /**
+     * Creates an encoder per level; returns false if one could not be
+     * initialized.
+     */
+    boolean open(EncoderSettings settings, int chunk) {
+        for (Level level : levels) {
+            level.encoder = new FFMpegEncoder(level.output, chunk,
+                    H5j_Writer.nearestPowerOfEight(level.width), H5j_Writer.nearestPowerOfEight(level.height),
+                    bdepth, settings.encoderName(), settings.codecId(), settings);
+            if (!level.encoder.isReady()) {
+                IJ.log("FFMpegEncoder failed to initialize for " + level.path);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    Level[] levels() {
+        return levels;
+    }
+
+    /** Adds the next full-resolution slice, a byte[] or short[] plane. */
+    void add(Object pixels) {
+        accumulate(0, pixels);
+    }
+
+    /** Encodes the last slice of each level, if it has only one source slice. */
+    void finish() {
+        for (int k = 0; k < levels.length; k++) {
+            if (levels[k].slices > 0)
+                emit(k);
+        }
+    }
+
+    private void accumulate(int k, Object pixels) {
+        Level level = levels[k];
+        int[] sum = level.sum;
+        int sw = level.sourceWidth;
+        if (pixels instanceof byte[]) {
+            byte[] px = (byte[]) pixels;
+            for (int y = 0; y < level.sourceHeight; y++) {
+                int row = (y >> 1) * level.width;
+                int src = y * sw;
+                for (int x = 0; x < sw; x++)
+                    sum[row + (x >> 1)] += px[src + x] & 0xff;
+            }
+        } else {
+            short[] px = (short[]) pixels;
+            for (int y = 0; y < level.sourceHeight; y++) {
+                int row = (y >> 1) * level.width;
+                int src = y * sw;
+                for (int x = 0; x < sw; x++)
+                    sum[row + (x >> 1)] += px[src + x] & 0xffff;
+            }
+        }
+        if (++level.slices == 2)
+            emit(k);
+    }
+
+    /** Averages the accumulated sums into a slice, encodes it and passes it down. */
+    private void emit(int k) {
+        Level level = levels[k];
+        int[] sum = level.sum;
+        int w = level.width;
+        int h = level.height;
+        Object plane = bdepth == 8 ? new byte[w * h] : new short[w * h];
+        for (int y = 0; y < h; y++) {
+            // odd source sizes leave a last row or column of single samples
+            int ny = Math.min(2, level.sourceHeight - 2 * y);
+            for (int x = 0; x < w; x++) {
+                int count = Math.min(2, level.sourceWidth - 2 * x) * ny * level.slices;
+                int mean = (sum[y * w + x] + count / 2) / count;
+                if (bdepth == 8)
+                    ((byte[]) plane)[y * w + x] = (byte) mean;
+                else
+                    ((short[]) plane)[y * w + x] = (short) mean;
+            }
+        }
+        Arrays.fill(sum, 0);
+        level.slices = 0;
+        if (bdepth == 8)
+            level.encoder.setPlane((byte[]) plane, 0, w, h, w);
+        else
+            level.encoder.setPlane((short[]) plane, 0, w, h, w, lut);
+        level.encoder.write_frame();
+        if (k + 1 < levels.length)
+            accumulate(k + 1, plane);
+    }
+
+    /** Flushes and frees the encoders; their size and packet index stay available. */
+    @Override
+    public void close() {
+        for (Level level : levels) {
+            if (level.encoder != null)
+                level.encoder.close();
+        }
+    }
+}
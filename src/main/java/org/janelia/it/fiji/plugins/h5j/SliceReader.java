@@ -0,0 +1,133 @@
+/*
+ * Copyright 2015 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+
+package org.janelia.it.fiji.plugins.h5j;
+
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.UnaryOperator;
+
+import ij.ImageStack;
+
+/**
+ * Hands out the pixel arrays of a list of stack slices one at a time, in
+ * encode order, so that only the slices currently in flight are referenced.
+ * With prefetch &gt; 0 a background thread reads up to that many slices
+ * ahead, overlapping virtual stack I/O with encoding.
+ */
+class SliceReader implements AutoCloseable {
+
+    private static final Object FAILED = new Object();
+
+    private final ImageStack stack;
+    private final int[] indices;
+    private final UnaryOperator<Object> convert;
+    private final BlockingQueue<Object> queue;
+    private final Thread prefetcher;
+    private volatile Throwable failure;
+    private int next;
+    private long fetchNanos;
+
+    /**
+     * @param indices 1-based stack indices, in the order they are needed
+     */
+    SliceReader(ImageStack stack, int[] indices, int prefetch) {
+        this(stack, indices, prefetch, null);
+    }
+
+    /**
+     * As SliceReader(ImageStack, int[], int), passing each slice's pixels
+     * through convert, e.g. to turn RGB or float slices into ones the
+     * encoder takes; with prefetch the conversion runs on the prefetch
+     * thread.
+     */
+    SliceReader(ImageStack stack, int[] indices, int prefetch, UnaryOperator<Object> convert) {
+        this.stack = stack;
+        this.indices = indices;
+        this.convert = convert;
+        if (prefetch > 0 && indices.length > 1) {
+            queue = new ArrayBlockingQueue<>(prefetch);
+            prefetcher = new Thread(this::prefetch, "H5J slice prefetch");
+            prefetcher.setDaemon(true);
+            prefetcher.start();
+        } else {
+            queue = null;
+            prefetcher = null;
+        }
+    }
+
+    int size() {
+        return indices.length;
+    }
+
+    /**
+     * Pixels of the next slice.
+     */
+    Object next() throws InterruptedException {
+        if (next >= indices.length)
+            throw new NoSuchElementException();
+        long start = System.nanoTime();
+        try {
+            if (queue == null)
+                return read(indices[next++]);
+            Object pixels = queue.take();
+            if (pixels == FAILED) {
+                // left in place so that later calls fail too rather than block
+                queue.offer(FAILED);
+                if (failure instanceof Error)
+                    throw (Error) failure;
+                throw new IllegalStateException("Unable to read slice " + indices[next], failure);
+            }
+            next++;
+            return pixels;
+        } finally {
+            fetchNanos += System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * Time spent in next(), reading slices or waiting for the prefetch thread.
+     */
+    long fetchNanos() {
+        return fetchNanos;
+    }
+
+    private Object read(int index) {
+        Object pixels;
+        // Virtual stacks decode from disk and are not safe to read concurrently
+        if (stack.isVirtual()) {
+            synchronized (stack) {
+                pixels = stack.getPixels(index);
+            }
+        } else {
+            pixels = stack.getPixels(index);
+        }
+        return convert == null ? pixels : convert.apply(pixels);
+    }
+
+    private void prefetch() {
+        try {
+            try {
+                for (int index : indices)
+                    queue.put(read(index));
+            } catch (RuntimeException | Error e) {
+                // e.g. an OutOfMemoryError on a large slice; next() rethrows it
+                failure = e;
+                queue.put(FAILED);
+            }
+        } catch (InterruptedException e) {
+            // closed before all slices were consumed
+        }
+    }
+
+    @Override
+    public void close() {
+        if (prefetcher != null)
+            prefetcher.interrupt();
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2015 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+
+package org.janelia.it.fiji.plugins.h5j;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Timing and throughput of one saveStackHDF5 call, per channel dataset
+ * and in total. Stage times are summed over the threads doing the work, so
+ * with pipelining or tiles they may add up to more than the wall time;
+ * comparing them shows which stage limits throughput.
+ */
+public class WriteMetrics {
+
+    /**
+     * Receives metrics as a write progresses. channelFinished is called on
+     * the thread that encoded the channel, possibly several at once.
+     */
+    public interface Listener {
+        default void channelFinished(Channel channel) {
+        }
+
+        void writeFinished(WriteMetrics metrics);
+    }
+
+    /**
+     * Metrics of one channel dataset (of one timepoint), summed over its
+     * tiles and its pyramid levels, whose encoding runs on the channel's
+     * fill thread.
+     */
+    public static class Channel {
+        public final String path;
+        public final int frames;
+        /** Uncompressed size of the slices. */
+        public final long inputBytes;
+        /** Size of the encoded streams, pyramid levels included. */
+        public final long outputBytes;
+        /** Reading the slices for the 16-bit intensity or float range, and CRF trials. */
+        public final long rangeNanos;
+        /** Waiting for slices from the stack (or its prefetch thread). */
+        public final long fetchNanos;
+        /** Copying slices into codec or raw frames. */
+        public final long copyNanos;
+        /** sws_scale colorspace conversion. */
+        public final long convertNanos;
+        /** Sending frames to and receiving packets from the codec. */
+        public final long encodeNanos;
+        /** Container muxing, excluding the writes to HDF5. */
+        public final long muxNanos;
+        /** Writing the stream into the HDF5 dataset, including lock waits. */
+        public final long writeNanos;
+        public final long wallNanos;
+        /** Native frame and IO buffers held by the channel's encoders, pyramid levels included. */
+        public final long nativeBytes;
+        /**
+         * Fraction of the encode's wall time each EncodePipeline stage was
+         * busy; all 0 for channels encoded without the pipeline (tiled, or
+         * pipeline depth 1), convertBusy also when no conversion is needed.
+         */
+        public final double fillBusy;
+        public final double convertBusy;
+        public final double encodeBusy;
+
+        Channel(String path, int frames, long inputBytes, long outputBytes, long rangeNanos,
+                long fetchNanos, long copyNanos, long convertNanos, long encodeNanos,
+                long muxNanos, long writeNanos, long wallNanos, long nativeBytes, double[] pipeline) {
+            this.path = path;
+            this.frames = frames;
+            this.inputBytes = inputBytes;
+            this.outputBytes = outputBytes;
+            this.rangeNanos = rangeNanos;
+            this.fetchNanos = fetchNanos;
+            this.copyNanos = copyNanos;
+            this.convertNanos = convertNanos;
+            this.encodeNanos = encodeNanos;
+            this.muxNanos = muxNanos;
+            this.writeNanos = writeNanos;
+            this.wallNanos = wallNanos;
+            this.nativeBytes = nativeBytes;
+            this.fillBusy = pipeline == null ? 0 : pipeline[0];
+            this.convertBusy = pipeline == null ? 0 : pipeline[1];
+            this.encodeBusy = pipeline == null ? 0 : pipeline[2];
+        }
+
+        public double framesPerSecond() {
+            return rate(frames, wallNanos);
+        }
+
+        public double megabytesPerSecond() {
+            return rate(inputBytes / 1e6, wallNanos);
+        }
+
+        /** Uncompressed over compressed size. */
+        public double compressionRatio() {
+            return outputBytes > 0 ? inputBytes / (double) outputBytes : 0.0;
+        }
+
+        String toJson() {
+            return String.format(Locale.ROOT, "{\"path\": \"%s\", \"frames\": %d, \"input_bytes\": %d,"
+                            + " \"output_bytes\": %d, \"compression_ratio\": %.3f, \"frames_per_second\": %.3f,"
+                            + " \"megabytes_per_second\": %.3f, \"native_bytes\": %d, \"seconds\": {\"range\": %.6f,"
+                            + " \"fetch\": %.6f, \"copy\": %.6f, \"convert\": %.6f, \"encode\": %.6f,"
+                            + " \"mux\": %.6f, \"hdf5_write\": %.6f, \"wall\": %.6f},"
+                            + " \"pipeline_busy\": {\"fill\": %.3f, \"convert\": %.3f, \"encode\": %.3f}}",
+                    path, frames, inputBytes, outputBytes, compressionRatio(), framesPerSecond(),
+                    megabytesPerSecond(), nativeBytes, rangeNanos / 1e9, fetchNanos / 1e9, copyNanos / 1e9,
+                    convertNanos / 1e9, encodeNanos / 1e9, muxNanos / 1e9, writeNanos / 1e9, wallNanos / 1e9,
+                    fillBusy, convertBusy, encodeBusy);
+        }
+    }
+
+    public final String fileName;
+    public final boolean success;
+    public final long wallNanos;
+    /**
+     * Peak native frame memory held by all encoders in the process during
+     * the write, so it includes the frames of concurrent writes.
+     */
+    public final long peakNativeBytes;
+    public final List<Channel> channels;
+
+    WriteMetrics(String fileName, boolean success, long wallNanos, long peakNativeBytes, List<Channel> channels) {
+        this.fileName = fileName;
+        this.success = success;
+        this.wallNanos = wallNanos;
+        this.peakNativeBytes = peakNativeBytes;
+        this.channels = Collections.unmodifiableList(new ArrayList<>(channels));
+    }
+
+    public long inputBytes() {
+        long sum = 0;
+        for (Channel c : channels)
+            sum += c.inputBytes;
+        return sum;
+    }
+
+    public long outputBytes() {
+        long sum = 0;
+        for (Channel c : channels)
+            sum += c.outputBytes;
+        return sum;
+    }
+
+    public int frames() {
+        int sum = 0;
+        for (Channel c : channels)
+            sum += c.frames;
+        return sum;
+    }
+
+    public double framesPerSecond() {
+        return rate(frames(), wallNanos);
+    }
+
+    public double megabytesPerSecond() {
+        return rate(inputBytes() / 1e6, wallNanos);
+    }
+
+    public double compressionRatio() {
+        long out = outputBytes();
+        return out > 0 ? inputBytes() / (double) out : 0.0;
+    }
+
+    private static double rate(double amount, long nanos) {
+        return nanos > 0 ? amount / (nanos / 1e9) : 0.0;
+    }
+
+    public String toJson() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.ROOT, "{\"file\": \"%s\", \"success\": %b, \"seconds\": %.6f, \"frames\": %d,"
+                        + " \"input_bytes\": %d, \"output_bytes\": %d, \"compression_ratio\": %.3f,"
+                        + " \"frames_per_second\": %.3f, \"megabytes_per_second\": %.3f, \"peak_native_bytes\": %d,",
+                fileName.replace("\\", "\\\\").replace("\"", "\\\""), success, wallNanos / 1e9, frames(),
+                inputBytes(), outputBytes(), compressionRatio(), framesPerSecond(), megabytesPerSecond(),
+                peakNativeBytes));
+        sb.append("\n  \"channels\": [");
+        for (int i = 0; i < channels.size(); i++) {
+            sb.append(i == 0 ? "\n    " : ",\n    ");
+            sb.append(channels.get(i).toJson());
+        }
+        sb.append("\n  ]\n}\n");
+        return sb.toString();
+    }
+}
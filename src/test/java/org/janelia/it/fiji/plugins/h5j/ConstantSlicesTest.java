@@ -0,0 +1,80 @@
+/*
+ * Copyright 2015 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+
+package org.janelia.it.fiji.plugins.h5j;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Checks how constant slices are detected and merged into
+ * (first slice, slice count, value) runs, and how the runs expand again.
+ */
+public class ConstantSlicesTest {
+
+    @Test
+    public void equalSlicesMergeIntoRuns() {
+        ConstantSlices constants = new ConstantSlices(0);
+        assertEquals(0, constants.add(plane(0)));
+        assertEquals(0, constants.add(plane(0)));
+        assertEquals(-1, constants.add(ramp()));
+        assertEquals(7, constants.add(plane(7)));
+        assertEquals(7, constants.add(plane(7)));
+        assertEquals(9, constants.add(plane(9)));
+        assertEquals(-1, constants.add(ramp()));
+        assertEquals(9, constants.add(plane(9)));
+        assertEquals(6, constants.count());
+        assertArrayEquals(new long[]{0, 2, 0, 3, 2, 7, 5, 1, 9, 7, 1, 9}, constants.runs());
+    }
+
+    @Test
+    public void toleranceTakesMiddleValue() {
+        ConstantSlices constants = new ConstantSlices(2);
+        byte[] within = plane(10);
+        within[5] = 12;
+        byte[] beyond = plane(10);
+        beyond[5] = 13;
+        assertEquals(11, constants.add(within));
+        assertEquals(-1, constants.add(beyond));
+        assertArrayEquals(new long[]{0, 1, 11}, constants.runs());
+    }
+
+    @Test
+    public void shortSamplesAreUnsigned() {
+        ConstantSlices constants = new ConstantSlices(0);
+        short[] px = new short[16];
+        Arrays.fill(px, (short) 40000);
+        assertEquals(40000, constants.add(px));
+        px[3] = 0;
+        assertEquals(-1, constants.add(px));
+        assertArrayEquals(new long[]{0, 1, 40000}, constants.runs());
+    }
+
+    @Test
+    public void runsExpandToSlices() {
+        long[] runs = {0, 2, 0, 3, 2, 7, 6, 4, 9};
+        assertArrayEquals(new int[]{0, 0, -1, 7, 7, -1, 9}, ConstantSlices.values(runs, 7));
+        assertArrayEquals(new int[]{-1, -1}, ConstantSlices.values(new long[0], 2));
+    }
+
+    private static byte[] plane(int value) {
+        byte[] px = new byte[16];
+        Arrays.fill(px, (byte) value);
+        return px;
+    }
+
+    private static byte[] ramp() {
+        byte[] px = new byte[16];
+        for (int i = 0; i < px.length; i++)
+            px[i] = (byte) (i * 10);
+        return px;
+    }
+}
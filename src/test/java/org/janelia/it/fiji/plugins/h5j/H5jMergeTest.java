@@ -0,0 +1,113 @@
+/*
+ * Copyright 2015 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+
+package org.janelia.it.fiji.plugins.h5j;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import org.junit.Test;
+
+/**
+ * Writes a two-channel stack as two shards, one channel each, merges them
+ * by link and by copy, and reads both channels back from the result.
+ */
+public class H5jMergeTest {
+
+    private static final int WIDTH = 40;
+    private static final int HEIGHT = 24;
+    private static final int DEPTH = 5;
+    private static final int CHANNELS = 2;
+
+    @Test
+    public void mergeLinked() throws IOException {
+        merge(false);
+    }
+
+    @Test
+    public void mergeCopied() throws IOException {
+        merge(true);
+    }
+
+    private static void merge(boolean copy) throws IOException {
+        ImagePlus img = stack();
+        File dir = Files.createTempDirectory("h5jmerge").toFile();
+        File[] shards = new File[CHANNELS];
+        File output = new File(dir, "merged.h5j");
+        try {
+            for (int s = 0; s < CHANNELS; s++) {
+                shards[s] = new File(dir, "shard" + s + ".h5j");
+                H5j_Writer writer = new H5j_Writer();
+                writer.getSettings().setCodec(EncoderSettings.CODEC_FFV1);
+                writer.setShard(s, CHANNELS);
+                assertTrue("shard " + s, writer.saveStackHDF5(shards[s].getPath(), img));
+            }
+            H5jMerge merge = new H5jMerge();
+            merge.setCopy(copy);
+            assertTrue("merge", merge.merge(output, Arrays.asList(shards)));
+            if (copy) {
+                // the copy must not depend on the shards
+                for (File shard : shards)
+                    assertTrue(shard.delete());
+            }
+            try (H5j_Reader reader = new H5j_Reader(output.getPath())) {
+                assertEquals(CHANNELS, reader.getChannelCount());
+                ImagePlus merged = reader.read(0, DEPTH);
+                assertNotNull("merged", merged);
+                assertEquals(CHANNELS, merged.getNChannels());
+                for (int c = 0; c < CHANNELS; c++) {
+                    for (int z = 0; z < DEPTH; z++) {
+                        int index = img.getStackIndex(c + 1, z + 1, 1);
+                        assertArrayEquals("channel " + c + " slice " + z,
+                                (byte[]) img.getStack().getPixels(index),
+                                (byte[]) merged.getStack().getPixels(index));
+                    }
+                }
+                // array attributes of the root survive the merge
+                Calibration cal = merged.getCalibration();
+                assertEquals(0.25, cal.pixelWidth, 1e-9);
+                assertEquals(2.0, cal.pixelDepth, 1e-9);
+            }
+        } finally {
+            for (File shard : shards) {
+                if (shard != null)
+                    shard.delete();
+            }
+            output.delete();
+            dir.delete();
+        }
+    }
+
+    private static ImagePlus stack() {
+        ImageStack stack = new ImageStack(WIDTH, HEIGHT);
+        for (int z = 0; z < DEPTH; z++) {
+            for (int c = 0; c < CHANNELS; c++) {
+                byte[] px = new byte[WIDTH * HEIGHT];
+                for (int i = 0; i < px.length; i++)
+                    px[i] = (byte) (i % WIDTH * (c + 2) + i / WIDTH + z * 9);
+                stack.addSlice(null, px);
+            }
+        }
+        ImagePlus img = new ImagePlus("shards", stack);
+        img.setDimensions(CHANNELS, DEPTH, 1);
+        Calibration cal = img.getCalibration();
+        cal.pixelWidth = 0.25;
+        cal.pixelHeight = 0.25;
+        cal.pixelDepth = 2.0;
+        return img;
+    }
+}
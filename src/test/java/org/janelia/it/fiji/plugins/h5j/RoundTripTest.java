@@ -0,0 +1,378 @@
+/*
+ * Copyright 2015 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+
+package org.janelia.it.fiji.plugins.h5j;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import ch.systemsx.cisd.hdf5.HDF5Factory;
+import ch.systemsx.cisd.hdf5.IHDF5Reader;
+import ij.ImagePlus;
+import ij.ImageStack;
+import org.junit.Test;
+
+/**
+ * Writes small 8-bit, 16-bit and float stacks and reads them back. With
+ * the default lossy settings the decoded samples must stay close to the
+ * source across the whole range of each type; the lossless codecs must
+ * return them exactly.
+ */
+public class RoundTripTest {
+
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 48;
+    private static final int DEPTH = 6;
+
+    @Test
+    public void roundTrip8Bit() throws IOException {
+        ImageStack stack = new ImageStack(WIDTH, HEIGHT);
+        for (int z = 0; z < DEPTH; z++) {
+            byte[] px = new byte[WIDTH * HEIGHT];
+            for (int i = 0; i < px.length; i++)
+                px[i] = (byte) Math.round(ramp(i, z) * 255);
+            stack.addSlice(null, px);
+        }
+        ImageStack decoded = roundTrip(stack);
+        double error = 0;
+        for (int z = 0; z < DEPTH; z++) {
+            byte[] a = (byte[]) stack.getPixels(z + 1);
+            byte[] b = (byte[]) decoded.getPixels(z + 1);
+            for (int i = 0; i < a.length; i++)
+                error += Math.abs((a[i] & 0xff) - (b[i] & 0xff));
+        }
+        assertMeanError(error, 255);
+    }
+
+    @Test
+    public void roundTrip16Bit() throws IOException {
+        ImageStack stack = new ImageStack(WIDTH, HEIGHT);
+        for (int z = 0; z < DEPTH; z++) {
+            short[] px = new short[WIDTH * HEIGHT];
+            for (int i = 0; i < px.length; i++)
+                px[i] = (short) Math.round(1000 + ramp(i, z) * 40000);
+            stack.addSlice(null, px);
+        }
+        ImageStack decoded = roundTrip(stack);
+        double error = 0;
+        for (int z = 0; z < DEPTH; z++) {
+            short[] a = (short[]) stack.getPixels(z + 1);
+            short[] b = (short[]) decoded.getPixels(z + 1);
+            for (int i = 0; i < a.length; i++)
+                error += Math.abs((a[i] & 0xffff) - (b[i] & 0xffff));
+        }
+        assertMeanError(error, 40000);
+    }
+
+    @Test
+    public void roundTripFloat() throws IOException {
+        ImageStack stack = new ImageStack(WIDTH, HEIGHT);
+        for (int z = 0; z < DEPTH; z++) {
+            float[] px = new float[WIDTH * HEIGHT];
+            for (int i = 0; i < px.length; i++)
+                px[i] = (float) (ramp(i, z) * 2 - 1);
+            stack.addSlice(null, px);
+        }
+        ImageStack decoded = roundTrip(stack);
+        double error = 0;
+        for (int z = 0; z < DEPTH; z++) {
+            float[] a = (float[]) stack.getPixels(z + 1);
+            float[] b = (float[]) decoded.getPixels(z + 1);
+            for (int i = 0; i < a.length; i++)
+                error += Math.abs(a[i] - b[i]);
+        }
+        assertMeanError(error, 2);
+    }
+
+    @Test
+    public void ffv1Keeps16Bit() throws IOException {
+        ImageStack stack = new ImageStack(WIDTH, HEIGHT);
+        for (int z = 0; z < DEPTH; z++) {
+            short[] px = new short[WIDTH * HEIGHT];
+            for (int i = 0; i < px.length; i++)
+                px[i] = (short) (ramp(i, z) * 65535 + (i * 7919 % 13));
+            stack.addSlice(null, px);
+        }
+        H5j_Writer writer = new H5j_Writer();
+        writer.getSettings().setCodec(EncoderSettings.CODEC_FFV1);
+        ImageStack decoded = roundTrip(writer, stack);
+        for (int z = 0; z < DEPTH; z++)
+            assertArrayEquals("slice " + z, (short[]) stack.getPixels(z + 1), (short[]) decoded.getPixels(z + 1));
+    }
+
+    @Test
+    public void x265LosslessKeeps8Bit() throws IOException {
+        ImageStack stack = new ImageStack(WIDTH, HEIGHT);
+        for (int z = 0; z < DEPTH; z++) {
+            byte[] px = new byte[WIDTH * HEIGHT];
+            for (int i = 0; i < px.length; i++)
+                px[i] = (byte) (ramp(i, z) * 255 + (i * 7919 % 5));
+            stack.addSlice(null, px);
+        }
+        H5j_Writer writer = new H5j_Writer();
+        writer.getSettings().setCodec(EncoderSettings.CODEC_X265_LOSSLESS);
+        ImageStack decoded = roundTrip(writer, stack);
+        for (int z = 0; z < DEPTH; z++)
+            assertArrayEquals("slice " + z, (byte[]) stack.getPixels(z + 1), (byte[]) decoded.getPixels(z + 1));
+    }
+
+    @Test
+    public void seekMatchesFullDecode() throws IOException {
+        // several GOPs, so the range starts past a keyframe the reader seeks to
+        int depth = 40;
+        ImageStack stack = new ImageStack(WIDTH, HEIGHT);
+        for (int z = 0; z < depth; z++) {
+            byte[] px = new byte[WIDTH * HEIGHT];
+            for (int i = 0; i < px.length; i++)
+                px[i] = (byte) (i % WIDTH * 3 + i / WIDTH * 2 + z * 5);
+            stack.addSlice(null, px);
+        }
+        File file = write(new H5j_Writer(), new ImagePlus("seek", stack));
+        try (H5j_Reader reader = new H5j_Reader(file.getPath())) {
+            ImageStack full = reader.readChannel(0, 0, depth);
+            ImageStack range = reader.readRegion(0, 0, 0, WIDTH, HEIGHT, 17, 23);
+            assertNotNull("full", full);
+            assertNotNull("range", range);
+            assertEquals(6, range.getSize());
+            for (int z = 0; z < range.getSize(); z++)
+                assertArrayEquals("slice " + (17 + z), (byte[]) full.getPixels(18 + z), (byte[]) range.getPixels(z + 1));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void constantSlicesComeBackExact() throws IOException {
+        // slices 1 and 2 blank, 4 a flat level, the others 16-bit ramps
+        int[] levels = {-1, 0, 0, -1, 30000, -1};
+        ImageStack stack = new ImageStack(WIDTH, HEIGHT);
+        for (int z = 0; z < DEPTH; z++) {
+            short[] px = new short[WIDTH * HEIGHT];
+            for (int i = 0; i < px.length; i++)
+                px[i] = (short) (levels[z] >= 0 ? levels[z] : Math.round(1000 + ramp(i, z) * 40000));
+            stack.addSlice(null, px);
+        }
+        File file = write(new H5j_Writer(), new ImagePlus("constant", stack));
+        try (H5j_Reader reader = new H5j_Reader(file.getPath())) {
+            // only constant slices, which are not decoded at all
+            ImageStack blank = reader.readRegion(0, 8, 4, 20, 10, 1, 3);
+            assertNotNull("blank", blank);
+            for (int z = 1; z <= blank.getSize(); z++)
+                assertArrayEquals("slice " + z, new short[20 * 10], (short[]) blank.getPixels(z));
+            // constant slices around a decoded one
+            ImageStack mixed = reader.readRegion(0, 8, 4, 20, 10, 2, 5);
+            assertNotNull("mixed", mixed);
+            assertEquals(3, mixed.getSize());
+            short[] flat = new short[20 * 10];
+            assertArrayEquals("slice 2", flat, (short[]) mixed.getPixels(1));
+            Arrays.fill(flat, (short) 30000);
+            assertArrayEquals("slice 4", flat, (short[]) mixed.getPixels(3));
+            short[] source = (short[]) stack.getPixels(4);
+            short[] decoded = (short[]) mixed.getPixels(2);
+            double error = 0;
+            for (int y = 0; y < 10; y++) {
+                for (int x = 0; x < 20; x++)
+                    error += Math.abs((source[(y + 4) * WIDTH + x + 8] & 0xffff) - (decoded[y * 20 + x] & 0xffff));
+            }
+            assertTrue("mean error " + error / 200, error / 200 < 400);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void tiledRegionAcrossTiles() throws IOException {
+        // 3 x 2 tiles of at most 64 x 64, the last column and row partial
+        int width = 150;
+        int height = 100;
+        ImageStack stack = texture(width, height, 4);
+        H5j_Writer writer = new H5j_Writer();
+        writer.getSettings().setCodec(EncoderSettings.CODEC_FFV1);
+        writer.setTileSize(64);
+        File file = write(writer, new ImagePlus("tiled", stack));
+        try (H5j_Reader reader = new H5j_Reader(file.getPath())) {
+            assertEquals(1, reader.getChannelCount());
+            assertEquals(width, reader.getWidth());
+            // crosses the boundary between the first two columns and both rows
+            int x = 50;
+            int y = 40;
+            int w = 40;
+            int h = 40;
+            ImageStack region = reader.readRegion(0, x, y, w, h, 1, 3);
+            assertNotNull("region", region);
+            assertEquals(2, region.getSize());
+            for (int z = 0; z < region.getSize(); z++) {
+                byte[] source = (byte[]) stack.getPixels(z + 2);
+                byte[] expected = new byte[w * h];
+                for (int row = 0; row < h; row++)
+                    System.arraycopy(source, (y + row) * width + x, expected, row * w, w);
+                assertArrayEquals("slice " + (z + 1), expected, (byte[]) region.getPixels(z + 1));
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void pyramidLevelsAreDownsampled() throws IOException {
+        // a third level would be 16 x 12, below Pyramid.MIN_SIZE
+        int width = 128;
+        int height = 96;
+        int depth = 6;
+        ImageStack stack = texture(width, height, depth);
+        H5j_Writer writer = new H5j_Writer();
+        writer.getSettings().setCodec(EncoderSettings.CODEC_FFV1);
+        writer.setPyramidLevels(3);
+        File file = write(writer, new ImagePlus("pyramid", stack));
+        try (H5j_Reader reader = new H5j_Reader(file.getPath())) {
+            assertEquals(2, reader.getLevels());
+            ImageStack expected = stack;
+            for (int k = 1; k <= 2; k++) {
+                expected = downsample(expected);
+                reader.setLevel(k);
+                assertEquals("width of level " + k, width >> k, reader.getWidth());
+                assertEquals("height of level " + k, height >> k, reader.getHeight());
+                assertEquals("frames of level " + k, expected.getSize(), reader.getFrames());
+                ImageStack level = reader.readChannel(0, 0, reader.getFrames());
+                assertNotNull("level " + k, level);
+                for (int z = 1; z <= expected.getSize(); z++)
+                    assertArrayEquals("level " + k + " slice " + z,
+                            (byte[]) expected.getPixels(z), (byte[]) level.getPixels(z));
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void timeSeriesLayout() throws IOException {
+        int depth = 4;
+        ImageStack stack = texture(WIDTH, HEIGHT, 2 * depth);
+        ImagePlus img = new ImagePlus("series", stack);
+        img.setDimensions(1, depth, 2);
+        H5j_Writer writer = new H5j_Writer();
+        writer.getSettings().setCodec(EncoderSettings.CODEC_FFV1);
+        File file = write(writer, img);
+        try {
+            try (IHDF5Reader h5 = HDF5Factory.openForReading(file)) {
+                assertTrue(h5.object().isGroup("/Timepoints/Timepoint_0"));
+                assertTrue(h5.object().isGroup("/Timepoints/Timepoint_1"));
+                assertTrue("/Channels is a soft link", h5.object().isSoftLink("/Channels"));
+            }
+            try (H5j_Reader reader = new H5j_Reader(file.getPath())) {
+                assertEquals(2, reader.getTimepoints());
+                // /Channels, as loaders that predate time series open it, is the first timepoint
+                assertTimepoint(img, 0, reader.readChannel(0, 0, depth));
+                reader.setTimepoint(1);
+                assertEquals(depth, reader.getFrames());
+                assertTimepoint(img, 1, reader.readChannel(0, 0, depth));
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static void assertTimepoint(ImagePlus img, int t, ImageStack decoded) {
+        assertNotNull("timepoint " + t, decoded);
+        assertEquals(img.getNSlices(), decoded.getSize());
+        for (int z = 0; z < decoded.getSize(); z++)
+            assertArrayEquals("timepoint " + t + " slice " + z,
+                    (byte[]) img.getStack().getPixels(img.getStackIndex(1, z + 1, t + 1)),
+                    (byte[]) decoded.getPixels(z + 1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownCodecIsRejected() {
+        new EncoderSettings().setCodec("lossless");
+    }
+
+    /** A smooth gradient in 0..1 over the plane, shifted a little per slice. */
+    private static double ramp(int i, int z) {
+        int x = i % WIDTH;
+        int y = i / WIDTH;
+        return (x + y + 4.0 * z) / (WIDTH + HEIGHT + 4.0 * DEPTH);
+    }
+
+    /** 8-bit slices with detail in x, y and z. */
+    private static ImageStack texture(int width, int height, int depth) {
+        ImageStack stack = new ImageStack(width, height);
+        for (int z = 0; z < depth; z++) {
+            byte[] px = new byte[width * height];
+            for (int i = 0; i < px.length; i++)
+                px[i] = (byte) (i % width * 3 + i / width * 2 + z * 5);
+            stack.addSlice(null, px);
+        }
+        return stack;
+    }
+
+    /**
+     * Rounded means of 2 x 2 x 2 voxels of an 8-bit stack of even width and
+     * height; an odd last slice is averaged on its own.
+     */
+    private static ImageStack downsample(ImageStack stack) {
+        int w = stack.getWidth() / 2;
+        int h = stack.getHeight() / 2;
+        ImageStack half = new ImageStack(w, h);
+        for (int z = 0; z < stack.getSize(); z += 2) {
+            int slices = Math.min(2, stack.getSize() - z);
+            byte[] px = new byte[w * h];
+            for (int y = 0; y < h; y++) {
+                for (int x = 0; x < w; x++) {
+                    int sum = 0;
+                    for (int dz = 0; dz < slices; dz++) {
+                        byte[] src = (byte[]) stack.getPixels(z + dz + 1);
+                        for (int dy = 0; dy < 2; dy++) {
+                            for (int dx = 0; dx < 2; dx++)
+                                sum += src[(2 * y + dy) * stack.getWidth() + 2 * x + dx] & 0xff;
+                        }
+                    }
+                    int count = 4 * slices;
+                    px[y * w + x] = (byte) ((sum + count / 2) / count);
+                }
+            }
+            half.addSlice(null, px);
+        }
+        return half;
+    }
+
+    /** Mean absolute error must stay within 1% of the data's range. */
+    private static void assertMeanError(double error, double range) {
+        double mean = error / ((double) WIDTH * HEIGHT * DEPTH);
+        assertTrue("mean error " + mean + " of range " + range, mean < range * 0.01);
+    }
+
+    private static ImageStack roundTrip(ImageStack stack) throws IOException {
+        return roundTrip(new H5j_Writer(), stack);
+    }
+
+    private static ImageStack roundTrip(H5j_Writer writer, ImageStack stack) throws IOException {
+        File file = write(writer, new ImagePlus("roundtrip", stack));
+        try (H5j_Reader reader = new H5j_Reader(file.getPath())) {
+            assertEquals(DEPTH, reader.getFrames());
+            ImageStack decoded = reader.readChannel(0, 0, DEPTH);
+            assertNotNull("decoded", decoded);
+            assertEquals(DEPTH, decoded.getSize());
+            return decoded;
+        } finally {
+            file.delete();
+        }
+    }
+
+    /** Saves img to a temporary file, deleted on exit, and returns it. */
+    private static File write(H5j_Writer writer, ImagePlus img) throws IOException {
+        File file = File.createTempFile("roundtrip", ".h5j");
+        file.deleteOnExit();
+        assertTrue("save", writer.saveStackHDF5(file.getPath(), img));
+        return file;
+    }
+}
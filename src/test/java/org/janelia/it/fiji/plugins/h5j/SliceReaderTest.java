@@ -0,0 +1,44 @@
+/*
+ * Copyright 2015 Howard Hughes Medical Institute.
+ * All rights reserved.
+ * Use is subject to Janelia Farm Research Campus Software Copyright 1.1
+ * license terms ( http://license.janelia.org/license/jfrc_copyright_1_1.html ).
+ */
+
+package org.janelia.it.fiji.plugins.h5j;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import ij.ImageStack;
+import org.junit.Test;
+
+/**
+ * Checks that a failure on the prefetch thread reaches the consumer
+ * instead of leaving it waiting for a slice that never comes.
+ */
+public class SliceReaderTest {
+
+    @Test(timeout = 10000)
+    public void prefetchErrorIsRethrown() throws InterruptedException {
+        ImageStack stack = new ImageStack(4, 4) {
+            @Override
+            public Object getPixels(int n) {
+                if (n == 2)
+                    throw new OutOfMemoryError("slice " + n);
+                return new byte[16];
+            }
+        };
+        try (SliceReader slices = new SliceReader(stack, new int[]{1, 2, 3}, 2)) {
+            assertEquals(16, ((byte[]) slices.next()).length);
+            for (int i = 0; i < 2; i++) {
+                try {
+                    slices.next();
+                    fail("slice 2 read");
+                } catch (OutOfMemoryError e) {
+                    assertEquals("slice 2", e.getMessage());
+                }
+            }
+        }
+    }
+}